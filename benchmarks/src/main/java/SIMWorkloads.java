@@ -0,0 +1,88 @@
+import benchmarks.Workload;
+import benchmarks.Workloads;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * SIMWorkloads sets up the benchmark workloads through SIM.Workbench, with the default layout. It has to share
+ *  the codec's (default) package, see benchmarks.Workloads.
+ */
+public class SIMWorkloads implements Workloads {
+
+    // strategy names by format, in the order of SIM.strategiesFor
+    private static final List<String> STRATEGY_NAMES = Arrays.asList("original", "rle", "bitmask", "consec1", "consec2", "consec4", "twobit", "direct");
+
+    private final SIM.Workbench bench = new SIM.Workbench();
+
+    @Override
+    public Workload compress(String strategyName, int[] words) {
+        return adapt(bench.strategyCompress(format(strategyName), words));
+    }
+
+    @Override
+    public Workload decompress(String strategyName, int[] words) {
+        return adapt(bench.strategyDecompress(format(strategyName), words));
+    }
+
+    @Override
+    public Workload buildDictionary(int[] words) {
+        return adapt(bench.buildDictionary(words));
+    }
+
+    @Override
+    public Workload separateInstructions(int[] words) {
+        try {
+            return adapt(bench.separateInstructions(words));
+        } catch (IOException e) {
+            throw new UncheckedIOException("could not compress the benchmark input", e);
+        }
+    }
+
+    @Override
+    public Workload outputToString(int[] words) {
+        try {
+            return adapt(bench.outputToString(words));
+        } catch (IOException e) {
+            throw new UncheckedIOException("could not compress the benchmark input", e);
+        }
+    }
+
+    @Override
+    public Workload runCompression(int[] words) {
+        return adapt(bench.runCompression(words));
+    }
+
+    @Override
+    public Workload runDecompression(int[] words) {
+        try {
+            return adapt(bench.runDecompression(words));
+        } catch (IOException e) {
+            throw new UncheckedIOException("could not compress the benchmark input", e);
+        }
+    }
+
+    private int format(String name) {
+        final int format = STRATEGY_NAMES.indexOf(name);
+        if (format == -1 || format >= bench.strategyCount()) {
+            throw new IllegalArgumentException("unknown strategy '" + name + "', expected one of " + STRATEGY_NAMES);
+        }
+        return format;
+    }
+
+    private static Workload adapt(SIM.Workbench.Work work) {
+        return new Workload() {
+            @Override
+            public Object run() throws Exception {
+                return work.run();
+            }
+
+            @Override
+            public int lines() {
+                return work.lines();
+            }
+        };
+    }
+}
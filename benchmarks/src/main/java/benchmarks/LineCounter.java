@@ -0,0 +1,27 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Counts the lines each benchmark gets through, which JMH reports as a "lines" rate next to ops/s.
+ */
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+@State(Scope.Thread)
+public class LineCounter {
+
+    public long lines;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        lines = 0;
+    }
+
+    Object count(Workload workload) throws Exception {
+        lines += workload.lines();
+        return workload.run();
+    }
+}
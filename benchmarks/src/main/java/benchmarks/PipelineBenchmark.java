@@ -0,0 +1,71 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The stages around the strategies (dictionary, instruction splitting, text output) and the whole
+ *  compression and decompression runs.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipelineBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class PipelineState {
+
+        Workload buildDictionary;
+        Workload separateInstructions;
+        Workload outputToString;
+        Workload runCompression;
+        Workload runDecompression;
+
+        @Setup
+        public void prepare(TraceState trace) {
+            Workloads workloads = Workloads.load();
+            buildDictionary = workloads.buildDictionary(trace.words());
+            separateInstructions = workloads.separateInstructions(trace.words());
+            outputToString = workloads.outputToString(trace.words());
+            runCompression = workloads.runCompression(trace.words());
+            runDecompression = workloads.runDecompression(trace.words());
+        }
+    }
+
+    @Benchmark
+    public Object buildDictionary(PipelineState state, LineCounter counter) throws Exception {
+        return counter.count(state.buildDictionary);
+    }
+
+    @Benchmark
+    public Object separateInstructions(PipelineState state, LineCounter counter) throws Exception {
+        return counter.count(state.separateInstructions);
+    }
+
+    @Benchmark
+    public Object outputToString(PipelineState state, LineCounter counter) throws Exception {
+        return counter.count(state.outputToString);
+    }
+
+    @Benchmark
+    public Object runCompression(PipelineState state, LineCounter counter) throws Exception {
+        return counter.count(state.runCompression);
+    }
+
+    @Benchmark
+    public Object runDecompression(PipelineState state, LineCounter counter) throws Exception {
+        return counter.count(state.runDecompression);
+    }
+}
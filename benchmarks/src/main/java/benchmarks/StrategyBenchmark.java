@@ -0,0 +1,54 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every CompressionStrategy on its own: compress() over a whole trace, and decompress() over every payload
+ *  that produced.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StrategyBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class StrategyState {
+
+        @Param({"original", "rle", "bitmask", "consec1", "consec2", "consec4", "twobit", "direct"})
+        public String strategy;
+
+        Workload compress;
+        Workload decompress;
+
+        @Setup
+        public void prepare(TraceState trace) {
+            Workloads workloads = Workloads.load();
+            compress = workloads.compress(strategy, trace.words());
+            decompress = workloads.decompress(strategy, trace.words());
+        }
+    }
+
+    @Benchmark
+    public Object compress(StrategyState state, LineCounter counter) throws Exception {
+        return counter.count(state.compress);
+    }
+
+    @Benchmark
+    public Object decompress(StrategyState state, LineCounter counter) throws Exception {
+        return counter.count(state.decompress);
+    }
+}
@@ -0,0 +1,59 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * A synthetic instruction trace, parameterised by size and by how repetitive it is. A repetitive trace has
+ *  many repeated lines (RLE), many lines straight from a small set of hot words (direct matches) and many near
+ *  misses of them (bitmask and mismatch strategies); the rest are random words only the original encoding fits.
+ */
+@State(Scope.Benchmark)
+public class TraceState {
+
+    // a few more hot words than the default dictionary holds, so some of them miss
+    private static final int HOT_WORDS = 24;
+    private static final long SEED = 4630;
+
+    @Param({"1000", "100000"})
+    public int lines;
+
+    // chance of a line being a repeat or coming from the hot words
+    @Param({"0.3", "0.9"})
+    public double repetitiveness;
+
+    private int[] words;
+
+    @Setup
+    public void generate() {
+        Random random = new Random(SEED);
+        int[] hot = new int[HOT_WORDS];
+        for (int i = 0; i != hot.length; ++i) {
+            hot[i] = random.nextInt();
+        }
+        words = new int[lines];
+        for (int line = 0; line != lines; ++line) {
+            final double roll = random.nextDouble();
+            if (line > 0 && roll < repetitiveness / 2) {
+                words[line] = words[line - 1];
+            } else if (roll < repetitiveness) {
+                int word = hot[random.nextInt(HOT_WORDS)];
+                if (random.nextBoolean()) {
+                    // flip 1 to 4 consecutive bits
+                    word ^= ((1 << (1 + random.nextInt(4))) - 1) << random.nextInt(28);
+                }
+                words[line] = word;
+            } else {
+                words[line] = random.nextInt();
+            }
+        }
+    }
+
+    int[] words() {
+        return words;
+    }
+}
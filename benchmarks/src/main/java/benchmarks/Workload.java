@@ -0,0 +1,16 @@
+package benchmarks;
+
+/**
+ * One piece of codec work, set up ahead of time so that run() measures only the work itself.
+ */
+public interface Workload {
+    /**
+     * @return the result (or something derived from it), for the benchmark to consume
+     */
+    Object run() throws Exception;
+
+    /**
+     * @return how many lines one run() covers (instructions, for the strategy decompress workloads)
+     */
+    int lines();
+}
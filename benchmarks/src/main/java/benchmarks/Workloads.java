@@ -0,0 +1,54 @@
+package benchmarks;
+
+/**
+ * Workloads sets up the codec work the benchmarks measure. The codec lives in the default package, which JMH
+ *  benchmarks (like any class in a named package) can't refer to, so the implementation, SIMWorkloads, sits in
+ *  the default package next to it and is looked up by name. Only setup goes through reflection.
+ */
+public interface Workloads {
+
+    /**
+     * @param strategy one of the names in SIMWorkloads, e.g. "bitmask"
+     * @param words
+     * @return the strategy's compress() on every line, against the dictionary of words
+     */
+    Workload compress(String strategy, int[] words);
+
+    /**
+     * @return the strategy's decompress() on every payload its compress() produced for words
+     */
+    Workload decompress(String strategy, int[] words);
+
+    /**
+     * @return counting words and picking the dictionary
+     */
+    Workload buildDictionary(int[] words);
+
+    /**
+     * @return splitting the compressed text of words into instructions (DecompressionInput)
+     */
+    Workload separateInstructions(int[] words);
+
+    /**
+     * @return rendering the compressed instructions of words as text (CompressionOutputBuilder.toString)
+     */
+    Workload outputToString(int[] words);
+
+    /**
+     * @return compressing words end to end, dictionary included
+     */
+    Workload runCompression(int[] words);
+
+    /**
+     * @return decompressing the compressed text of words end to end
+     */
+    Workload runDecompression(int[] words);
+
+    static Workloads load() {
+        try {
+            return (Workloads) Class.forName("SIMWorkloads").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("SIMWorkloads is missing from the classpath", e);
+        }
+    }
+}
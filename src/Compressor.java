@@ -0,0 +1,81 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Compressor compresses traces in memory, producing exactly the text the command line writes to cout.txt.
+ *  It only holds configuration and the (stateless) strategies, so one instance can be shared by any number of
+ *  threads; per-call state like RLE's memory of the previous line lives in each call's own StrategySchedule.
+ *
+ *  Options are written as on the command line, e.g. new Compressor("--dictionary-size=64", "--optimal"); only
+ *  those about the layout and how lines are encoded are accepted, see SIM.libraryOptions.
+ */
+public final class Compressor {
+
+    private final SIM.Codec codec;
+
+    /**
+     * @throws IllegalArgumentException if the options are unknown, not for a library, or don't make sense
+     */
+    public Compressor(String... options) {
+        this.codec = new SIM.Codec(SIM.FLAG_COMPRESS, options);
+    }
+
+    /**
+     * @param words the trace, one instruction word per line
+     * @return the compressed text
+     */
+    public String compress(int[] words) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            codec.compress(words, out);
+        } catch (IOException e) {
+            // only loading a shared dictionary can fail, writing to memory can't
+            throw new UncheckedIOException(e);
+        }
+        return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @param words the trace as 4 byte words in the buffer's byte order, from its position to its limit,
+     *  which are all consumed
+     * @return the compressed text
+     */
+    public String compress(ByteBuffer words) {
+        if (words.remaining() % Integer.BYTES != 0) {
+            throw new IllegalArgumentException(words.remaining() + " bytes aren't a whole number of words.");
+        }
+        int[] trace = new int[words.remaining() / Integer.BYTES];
+        words.asIntBuffer().get(trace);
+        words.position(words.limit());
+        return compress(trace);
+    }
+
+    /**
+     * @param original the trace as text, one line of '0'/'1' characters per word like original.txt. It is read
+     *  to the end but not closed.
+     * @return the compressed text
+     */
+    public String compress(InputStream original) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(original, StandardCharsets.US_ASCII));
+        List<String> lines = reader.lines().collect(Collectors.toList());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.compress(lines, out);
+        return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Writes the compressed text for words to out, which is left open.
+     */
+    public void compress(int[] words, OutputStream out) throws IOException {
+        codec.compress(words, out);
+    }
+}
@@ -0,0 +1,62 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Decompressor turns compressed text, as Compressor or the command line write it, back into the trace's words.
+ *  Like Compressor it only holds configuration and can be shared by any number of threads. The text doesn't
+ *  record its layout, so a Decompressor has to be given the same layout options the text was compressed with.
+ *  Text naming a shared dictionary is decoded with the one in the --dictionaries store.
+ */
+public final class Decompressor {
+
+    private final SIM.Codec codec;
+
+    /**
+     * @throws IllegalArgumentException if the options are unknown, not for a library, or don't make sense
+     */
+    public Decompressor(String... options) {
+        this.codec = new SIM.Codec(SIM.FLAG_DECOMPRESS, options);
+    }
+
+    /**
+     * @return the trace, one instruction word per line
+     */
+    public int[] decompress(String compressed) {
+        return decompress(new BufferedReader(new StringReader(compressed)).lines().collect(Collectors.toList()));
+    }
+
+    /**
+     * @param compressed the compressed text as ASCII bytes, from the buffer's position to its limit, which are
+     *  all consumed
+     * @return the trace, one instruction word per line
+     */
+    public int[] decompress(ByteBuffer compressed) {
+        return decompress(StandardCharsets.US_ASCII.decode(compressed).toString());
+    }
+
+    /**
+     * @param compressed read to the end but not closed
+     * @return the trace, one instruction word per line
+     */
+    public int[] decompress(InputStream compressed) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(compressed, StandardCharsets.US_ASCII));
+        return decompress(reader.lines().collect(Collectors.toList()));
+    }
+
+    private int[] decompress(List<String> lines) {
+        try {
+            return codec.decompress(lines);
+        } catch (IOException e) {
+            // only loading a shared dictionary can fail, the lines are already in memory
+            throw new UncheckedIOException(e);
+        }
+    }
+}
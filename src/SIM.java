@@ -2,12 +2,63 @@
 // MIT Licensed
 // On my honor, I have neither given nor received unauthorized aid on this assignment
 
+import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
 
 public class SIM {
     /* Debug Settings */
@@ -19,86 +70,598 @@ public class SIM {
     private static final String FILENAME_COMPRESSION_OUTPUT = "cout.txt";
     private static final String FILENAME_DECOMPRESSION_INPUT = "compressed.txt";
     private static final String FILENAME_DECOMPRESSION_OUTPUT = "dout.txt";
+    private static final String FILENAME_BINARY_COMPRESSION_OUTPUT = "cout.bin";
+    private static final String FILENAME_BINARY_DECOMPRESSION_INPUT = "compressed.bin";
+    private static final String FILENAME_METRICS = "metrics.json";
+    private static final String FILENAME_SOCKET = "sim.sock";
+    private static final String FILENAME_DICTIONARIES = "dictionaries";
+    // where command line jobs run, and what in-memory runs (the library, runCompression) resolve --dictionaries against
+    private static final Path WORKING_DIR = Paths.get("");
+
+    static final String FLAG_COMPRESS = "1";
+    static final String FLAG_DECOMPRESS = "2";
+    private static final String FLAG_TEXT_TO_BINARY = "3"; // compressed.txt -> compressed.bin
+    private static final String FLAG_BINARY_TO_TEXT = "4"; // compressed.bin -> compressed.txt
+    private static final String FLAG_SERVE = "5"; // run jobs sent over a local socket until stopped, see CompressionService
+    private static final String FLAG_TRAIN = "6"; // original.txt -> a shared dictionary in --dictionaries, printing its id
+    private static final List<String> JOB_OPERATIONS = Arrays.asList(FLAG_COMPRESS, FLAG_DECOMPRESS, FLAG_TEXT_TO_BINARY, FLAG_BINARY_TO_TEXT, FLAG_TRAIN);
+
+    /* Optional Flags (passed after the compress/decompress argument as --name or --name=value) */
+    private static final String OPTION_NEIGHBORHOOD_INDEX = "neighborhood-index";
+    private static final String OPTION_DECISION_CACHE = "decision-cache"; // optional value: max cached words
+    private static final String OPTION_PARALLEL = "parallel"; // optional value: number of threads (compress and decompress)
+    private static final String OPTION_STREAM = "stream";
+    private static final String OPTION_BINARY = "binary"; // use cout.bin / compressed.bin instead of the text files
+    private static final String OPTION_MMAP = "mmap"; // memory map original.txt instead of reading it line by line
+    private static final String OPTION_BLOCK = "block"; // optional value: instructions per block, needs --binary
+    private static final String OPTION_LINES = "lines"; // from:to, decompress only output lines [from, to), needs --binary
+    private static final String OPTION_OPTIMAL = "optimal"; // fewest total bits instead of the cheapest encoding per line
+    private static final String OPTION_DICTIONARY = "dictionary"; // DICTIONARY_FREQUENCY (default) or DICTIONARY_COVERAGE
+    // stream layout; --binary files record it in their header, text files need it again to decompress
+    private static final String OPTION_DICTIONARY_SIZE = "dictionary-size"; // max dictionary entries, up to 256
+    private static final String OPTION_FORMAT_BITS = "format-bits";
+    private static final String OPTION_LOCATION_BITS = "location-bits";
+    // optional value: where the JSON summary goes (FILENAME_METRICS by default); also published over JMX during the run
+    private static final String OPTION_METRICS = "metrics";
+    private static final String OPTION_SOCKET = "socket"; // with FLAG_SERVE: the socket file, FILENAME_SOCKET by default
+    // value: the id of a trained dictionary to compress with, instead of one counted from (and stored with) the input
+    private static final String OPTION_SHARED_DICTIONARY = "shared-dictionary";
+    // where trained dictionaries are kept, FILENAME_DICTIONARIES by default; relative to the job's directory
+    private static final String OPTION_DICTIONARIES = "dictionaries";
+    // compress original.txt's lines onto the end of the existing cout.txt (or --binary cout.bin), keeping its dictionary
+    private static final String OPTION_APPEND = "append";
+    private static final List<String> KNOWN_OPTIONS = Arrays.asList(
+            OPTION_NEIGHBORHOOD_INDEX,
+            OPTION_DECISION_CACHE,
+            OPTION_PARALLEL,
+            OPTION_STREAM,
+            OPTION_BINARY,
+            OPTION_MMAP,
+            OPTION_BLOCK,
+            OPTION_LINES,
+            OPTION_OPTIMAL,
+            OPTION_DICTIONARY,
+            OPTION_DICTIONARY_SIZE,
+            OPTION_FORMAT_BITS,
+            OPTION_LOCATION_BITS,
+            OPTION_METRICS,
+            OPTION_SOCKET,
+            OPTION_SHARED_DICTIONARY,
+            OPTION_DICTIONARIES,
+            OPTION_APPEND
+    );
+    // what the library classes (Compressor, Decompressor) take: no files, so only the layout and how lines are encoded
+    private static final List<String> LIBRARY_OPTIONS = Arrays.asList(
+            OPTION_NEIGHBORHOOD_INDEX,
+            OPTION_DECISION_CACHE,
+            OPTION_PARALLEL,
+            OPTION_OPTIMAL,
+            OPTION_DICTIONARY,
+            OPTION_DICTIONARY_SIZE,
+            OPTION_FORMAT_BITS,
+            OPTION_LOCATION_BITS,
+            OPTION_SHARED_DICTIONARY,
+            OPTION_DICTIONARIES
+    );
+
+    private static final int DEFAULT_DECISION_CACHE_SIZE = 4096;
+    private static final int PARALLEL_CHUNK_LINES = 1 << 16;
+    private static final int DEFAULT_BLOCK_INSTRUCTIONS = 4096;
+    private static final int PARALLEL_SEGMENT_INSTRUCTIONS = 1 << 16;
+
+    private static final int DEFAULT_FORMAT_BITS = 3; // num bits that denote the format (or strategy)
+    static final int OUTPUT_WIDTH = 32;
+
+    private static final int DEFAULT_DICTIONARY_SIZE = 16;
+    static final String DICTIONARY_SEPARATOR = "xxxx";
+    private static final String DICTIONARY_FREQUENCY = "frequency"; // the most frequent words
+    private static final String DICTIONARY_COVERAGE = "coverage"; // the words saving the most bits, see CoverageSelection
+    private static final int COVERAGE_CANDIDATES = 1024;
 
-    private static final String FLAG_COMPRESS = "1";
-    private static final String FLAG_DECOMPRESS = "2";
-
-    private static final int FORMAT_BITS = 3; // num bits that denote the format (or strategy)
-    private static final int OUTPUT_WIDTH = 32;
+    private static final int BITMASK_BITMASK_SIZE = 4;
+    private static final int DEFAULT_LOCATION_BITS = 5; // bit locations within a word (bitmask, mismatches)
 
-    private static final int DICTIONARY_SIZE = 16;
-    private static final int DICTIONARY_NUM_BITS = 4;
-    private static final String DICTIONARY_SEPARATOR = "xxxx";
+    static final CodecLayout DEFAULT_LAYOUT = new CodecLayout(DEFAULT_DICTIONARY_SIZE, DEFAULT_FORMAT_BITS, DEFAULT_LOCATION_BITS);
 
-    private static final int BITMASK_BITMASK_SIZE = 4;
-    private static final int BITMASK_STARTING_LOC_SIZE = 5;
+    // the strategies used so far, by layout. They hold no state, so every job and thread shares them
+    private static final Map<CodecLayout, List<CompressionStrategy>> SHARED_STRATEGIES = new ConcurrentHashMap<>();
 
     public static void main(String[] args) throws IOException {
 
-        // Compression strategies in order of priority
+        if (IS_TESTING) {
+            runTesting();
+        } else {
+            runProduction(args);
+        }
+
+    }
+
+    /**
+     * @param layout
+     * @return the compression strategies in order of priority, with field widths taken from layout
+     */
+    static List<CompressionStrategy> strategiesFor(CodecLayout layout) {
+        final int dictBits = layout.dictionaryIndexBits();
+        final int locBits = layout.locationBits();
         List<CompressionStrategy> compStrategies = Arrays.asList(
                 new OriginalBinaryEncodingStrategy(),
                 new RunLengthEncodingStrategy(),
-                new BitmaskBasedEncodingStrategy(DICTIONARY_NUM_BITS, BITMASK_BITMASK_SIZE, BITMASK_STARTING_LOC_SIZE),   // Bitmask-Based Compression
-                new ConsecMismatchStrategy(1),   // 1-bit Mismatch
-                new ConsecMismatchStrategy(2),   // 2-bit consecutive mismatch
-                new ConsecMismatchStrategy(4),   // 4-bit consecutive mismatch
-                new TwoBitAnywhereMismatchStrategy(),   // 2-bit anywhere mismatch
-                new DirectMatchEncodingStrategy(DICTIONARY_NUM_BITS)
+                new BitmaskBasedEncodingStrategy(dictBits, BITMASK_BITMASK_SIZE, locBits),   // Bitmask-Based Compression
+                new ConsecMismatchStrategy(1, dictBits, locBits),   // 1-bit Mismatch
+                new ConsecMismatchStrategy(2, dictBits, locBits),   // 2-bit consecutive mismatch
+                new ConsecMismatchStrategy(4, dictBits, locBits),   // 4-bit consecutive mismatch
+                new TwoBitAnywhereMismatchStrategy(dictBits, locBits),   // 2-bit anywhere mismatch
+                new DirectMatchEncodingStrategy(dictBits)
         );
-
-        if (IS_TESTING) {
-            runTesting(compStrategies);
-        } else {
-            runProduction(compStrategies, args);
+        if (compStrategies.size() > (1 << layout.formatBits())) {
+            throw new IllegalArgumentException(compStrategies.size() + " strategies don't fit in " + layout.formatBits() + " format bits.");
         }
+        return compStrategies;
+    }
 
+    /**
+     * @return strategiesFor(layout), built once per layout and then reused
+     */
+    private static List<CompressionStrategy> sharedStrategiesFor(CodecLayout layout) {
+        return SHARED_STRATEGIES.computeIfAbsent(layout, SIM::strategiesFor);
     }
 
     private static void writeToFile(String filename, String output) throws FileNotFoundException {
         try(PrintStream ps = new PrintStream(filename)) { ps.println(output); }
     }
 
-    private static void runProduction(List<CompressionStrategy> compStrategies, String[] args) throws IOException {
+    private static void runProduction(String[] args) throws IOException {
         // Parse Input Args
-        if (args.length != 1) {
+        if (args.length < 1) {
             System.err.println("Please enter the correct number of arguments");
             System.exit(2);
         }
 
         final String compOrDecompArg = args[0];
+        RunOptions options = null;
+        CodecLayout layout = null;
+        try {
+            options = new RunOptions(Arrays.copyOfRange(args, 1, args.length), KNOWN_OPTIONS);
+            layout = layoutFor(options);
+            checkJob(compOrDecompArg, options, layout);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error, " + e.getMessage());
+            System.exit(2);
+        }
+        if (compOrDecompArg.equals(FLAG_SERVE)) {
+            runService(options);
+            return;
+        }
+        if (!JOB_OPERATIONS.contains(compOrDecompArg)) {
+            System.err.println("Error, unrecognized argument '"+compOrDecompArg+"'.");
+            System.exit(4);
+        }
+        try {
+            final String result = runJob(WORKING_DIR, compOrDecompArg, options, layout);
+            if (result != null) {
+                System.out.println(result);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error, " + e.getMessage());
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Runs one job from its command line arguments, the same as runProduction would, but reading and writing
+     *  the files in dir and reporting bad arguments by throwing instead of exiting. This is what the service runs.
+     * @return what the job reports besides its files, which runProduction prints: the id of a trained
+     *  dictionary, or null
+     * @throws IllegalArgumentException if the arguments don't make sense
+     */
+    static String runJob(Path dir, String[] args) throws IOException {
+        if (args.length < 1 || !JOB_OPERATIONS.contains(args[0])) {
+            throw new IllegalArgumentException("a job needs one of the operations " + JOB_OPERATIONS + ", got " + Arrays.toString(args) + ".");
+        }
+        RunOptions options = new RunOptions(Arrays.copyOfRange(args, 1, args.length), KNOWN_OPTIONS);
+        CodecLayout layout = layoutFor(options);
+        checkJob(args[0], options, layout);
+        return runJob(dir, args[0], options, layout);
+    }
+
+    /**
+     * @return the layout the options ask for
+     * @throws IllegalArgumentException if it is invalid or the strategies don't fit in it
+     */
+    static CodecLayout layoutFor(RunOptions options) {
+        CodecLayout layout = new CodecLayout(
+                options.getInt(OPTION_DICTIONARY_SIZE, DEFAULT_DICTIONARY_SIZE),
+                options.getInt(OPTION_FORMAT_BITS, DEFAULT_FORMAT_BITS),
+                options.getInt(OPTION_LOCATION_BITS, DEFAULT_LOCATION_BITS));
+        sharedStrategiesFor(layout);
+        return layout;
+    }
+
+    /**
+     * Reads and checks the options given to Compressor or Decompressor, written as on the command line.
+     * @param operation FLAG_COMPRESS or FLAG_DECOMPRESS, which the options are checked against
+     * @throws IllegalArgumentException if one isn't a LIBRARY_OPTIONS option or they don't make sense
+     */
+    private static RunOptions libraryOptions(String operation, String[] args) {
+        RunOptions options = new RunOptions(args, LIBRARY_OPTIONS);
+        checkJob(operation, options, layoutFor(options));
+        return options;
+    }
+
+    /**
+     * Codec is what a Compressor or Decompressor holds: its checked options, the layout and the strategies,
+     *  none of which change after construction. The library classes live in their own files and so only go
+     *  through SIM, never through the types declared next to it.
+     */
+    static final class Codec {
+        private final RunOptions options;
+        private final CodecLayout layout;
+        private final List<CompressionStrategy> strategies;
+
+        /**
+         * @param operation FLAG_COMPRESS or FLAG_DECOMPRESS
+         * @throws IllegalArgumentException if the options are unknown, not for a library, or don't make sense
+         */
+        Codec(String operation, String[] args) {
+            this.options = libraryOptions(operation, args);
+            this.layout = layoutFor(options);
+            this.strategies = strategiesFor(layout);
+        }
+
+        /**
+         * Writes the compressed text for words to out, which is left open.
+         */
+        void compress(int[] words, OutputStream out) throws IOException {
+            compress(new CompressionInput(words), out);
+        }
+
+        /**
+         * Like compress(int[], OutputStream), with the words as lines of '0'/'1' characters.
+         */
+        void compress(List<String> lines, OutputStream out) throws IOException {
+            compress(new CompressionInput(lines), out);
+        }
+
+        private void compress(CompressionInput input, OutputStream out) throws IOException {
+            // not closed, as that would close out too; finish() flushes everything
+            StreamingCompressionOutput output = new StreamingCompressionOutput(Channels.newChannel(out), layout.formatBits(), OUTPUT_WIDTH, DICTIONARY_SEPARATOR);
+            output.finish(compressInto(input, strategies, layout, options, sharedDictionary(WORKING_DIR, options, layout), output, null, null));
+        }
+
+        /**
+         * @param lines the compressed text, a line at a time
+         * @return the trace, one instruction word per line
+         */
+        int[] decompress(List<String> lines) throws IOException {
+            // the dictionary comes last, so it has to be found before anything can be decoded
+            final int separator = lines.indexOf(DICTIONARY_SEPARATOR);
+            if (separator == -1) {
+                throw new IllegalArgumentException("the compressed text has no '" + DICTIONARY_SEPARATOR + "' line before its dictionary.");
+            }
+            List<String> section = lines.subList(separator + 1, lines.size());
+            final String sharedId = DictionaryStore.referenceIn(section);
+            Dictionary dict = sharedId == null
+                    ? new Dictionary(DictionaryStore.entriesIn(section), layout.dictionaryIndexBits())
+                    : sharedDictionary(WORKING_DIR, sharedId, layout, options);
+
+            Iterator<String> bitLines = lines.subList(0, separator).iterator();
+            DecompressionOutputBuilder output = new DecompressionOutputBuilder();
+            new DecodeEngine(strategies, layout.formatBits())
+                    .decode(new TextBitReader(() -> bitLines.hasNext() ? bitLines.next() : null), dict, output);
+            return output.toArray();
+        }
+    }
+
+    /**
+     * Workbench sets up pieces of the codec for the benchmarks and tests to run on their own, with the layout
+     *  and encoding options written as on the command line. Like Codec, it hands out only JDK types, so code in
+     *  other source files doesn't reach the types declared next to SIM.
+     */
+    static final class Workbench {
+        private final RunOptions options;
+        private final CodecLayout layout;
+        private final List<CompressionStrategy> strategies;
+
+        /**
+         * @throws IllegalArgumentException if the options are unknown or don't make sense
+         */
+        Workbench(String... args) {
+            this.options = new RunOptions(args, KNOWN_OPTIONS);
+            this.layout = layoutFor(options);
+            checkJob(FLAG_COMPRESS, options, layout);
+            this.strategies = strategiesFor(layout);
+        }
+
+        /**
+         * Work is a prepared run: everything it needs is built up front, so only run() is worth timing.
+         */
+        static final class Work {
+            private final int lines;
+            private final Callable<Object> body;
+
+            private Work(int lines, Callable<Object> body) {
+                this.lines = lines;
+                this.body = body;
+            }
+
+            Object run() throws Exception {
+                return body.call();
+            }
+
+            /**
+             * @return how many lines one run() handles
+             */
+            int lines() {
+                return lines;
+            }
+        }
+
+        /**
+         * @return how many strategies, and so formats, there are
+         */
+        int strategyCount() {
+            return strategies.size();
+        }
+
+        /**
+         * Tries one strategy on every line, with the input's own dictionary.
+         */
+        Work strategyCompress(int format, int[] words) {
+            final CompressionStrategy strategy = strategies.get(format);
+            final CompressionInput input = new CompressionInput(words);
+            final Dictionary dict = dictionaryOf(input);
+            return new Work(words.length, () -> {
+                int matched = 0;
+                for (int line = 0; line != input.size(); ++line) {
+                    if (strategy.compress(dict, input, line) != null) {
+                        ++matched;
+                    }
+                }
+                return matched;
+            });
+        }
+
+        /**
+         * Decodes every payload one strategy matched, each on its own.
+         */
+        Work strategyDecompress(int format, int[] words) {
+            final CompressionStrategy strategy = strategies.get(format);
+            final CompressionInput input = new CompressionInput(words);
+            final Dictionary dict = dictionaryOf(input);
+            IntList payloads = new IntList();
+            for (int line = 0; line != input.size(); ++line) {
+                CompressionResult result = strategy.compress(dict, input, line);
+                if (result != null) {
+                    payloads.add(result.getCompressedLine());
+                }
+            }
+            final int[] encoded = payloads.toArray();
+            return new Work(encoded.length, () -> {
+                DecompressionOutputBuilder output = new DecompressionOutputBuilder();
+                // something for RLE to repeat
+                output.add(words[0]);
+                for (int payload : encoded) {
+                    strategy.decompress(dict, output, payload);
+                }
+                return output;
+            });
+        }
+
+        Work buildDictionary(int[] words) {
+            final CompressionInput input = new CompressionInput(words);
+            return new Work(words.length, () -> dictionaryOf(input));
+        }
+
+        /**
+         * Splits the compressed text back into instructions.
+         */
+        Work separateInstructions(int[] words) throws IOException {
+            final List<String> compressed = compressedLines(words);
+            return new Work(words.length, () -> new DecompressionInput(compressed, strategies, DICTIONARY_SEPARATOR, layout.formatBits()));
+        }
+
+        /**
+         * Writes already chosen instructions out as text.
+         */
+        Work outputToString(int[] words) throws IOException {
+            DecompressionInput instructions = new DecompressionInput(compressedLines(words), strategies, DICTIONARY_SEPARATOR, layout.formatBits());
+            final CompressionOutputBuilder output = new CompressionOutputBuilder(layout.formatBits(), OUTPUT_WIDTH, false);
+            for (int i = 0; i != instructions.cmpdInstrucionSize(); ++i) {
+                final int format = instructions.getCmpdFormat(i);
+                output.add(format, instructions.getCmpdInstruction(i), strategies.get(format).getEncodingLength());
+            }
+            return new Work(words.length, output::toString);
+        }
+
+        Work runCompression(int[] words) {
+            final CompressionInput input = new CompressionInput(words);
+            return new Work(words.length, () -> SIM.runCompression(input, strategies, layout, options, null, false));
+        }
+
+        Work runDecompression(int[] words) throws IOException {
+            final List<String> compressed = compressedLines(words);
+            return new Work(words.length, () -> SIM.runDecompression(new DecompressionInput(compressed, strategies, DICTIONARY_SEPARATOR, layout.formatBits()), strategies, layout, null));
+        }
+
+        /**
+         * @return the compressed text for words, without the final newline the file gets
+         */
+        String compress(int[] words) throws IOException {
+            return SIM.runCompression(new CompressionInput(words), strategies, layout, options, null, false);
+        }
+
+        /**
+         * @return how many bits the instructions for words take, format fields included but not the padding or
+         *  the dictionary
+         */
+        long streamBits(int[] words) {
+            final long[] bits = {0};
+            compressInto(new CompressionInput(words), strategies, layout, options, null,
+                    (format, payload, payloadBits) -> bits[0] += layout.formatBits() + payloadBits, null, null);
+            return bits[0];
+        }
+
+        private Dictionary dictionaryOf(CompressionInput input) {
+            return new Dictionary(input, layout.dictionaryIndexBits(), layout.dictionarySize());
+        }
+
+        private List<String> compressedLines(int[] words) throws IOException {
+            return Arrays.asList(compress(words).split("\n"));
+        }
+    }
+
+    /**
+     * Checks that the options make sense together for the given operation.
+     * @throws IllegalArgumentException with the message to report, if they don't
+     */
+    private static void checkJob(String compOrDecompArg, RunOptions options, CodecLayout layout) {
+        if ((options.has(OPTION_BLOCK) || options.has(OPTION_LINES)) && !options.has(OPTION_BINARY)) {
+            throw new IllegalArgumentException("--" + OPTION_BLOCK + " and --" + OPTION_LINES + " only work with --" + OPTION_BINARY + ".");
+        }
+        if (options.has(OPTION_OPTIMAL) && (options.has(OPTION_STREAM) || options.has(OPTION_BLOCK))) {
+            throw new IllegalArgumentException("--" + OPTION_OPTIMAL + " can't be combined with --" + OPTION_STREAM + " or --" + OPTION_BLOCK + ".");
+        }
+        final String dictionaryMode = options.get(OPTION_DICTIONARY, DICTIONARY_FREQUENCY);
+        if (!dictionaryMode.equals(DICTIONARY_FREQUENCY) && !dictionaryMode.equals(DICTIONARY_COVERAGE)) {
+            throw new IllegalArgumentException("--" + OPTION_DICTIONARY + " expects " + DICTIONARY_FREQUENCY + " or " + DICTIONARY_COVERAGE + ", got '" + dictionaryMode + "'.");
+        }
+        if (compOrDecompArg.equals(FLAG_DECOMPRESS) && options.has(OPTION_METRICS) && (options.has(OPTION_PARALLEL) || options.has(OPTION_LINES))) {
+            throw new IllegalArgumentException("--" + OPTION_METRICS + " only measures the serial decoder, not --" + OPTION_PARALLEL + " or --" + OPTION_LINES + ".");
+        }
+        if (options.has(OPTION_PARALLEL) && options.getInt(OPTION_PARALLEL, 1) < 1) {
+            throw new IllegalArgumentException("--" + OPTION_PARALLEL + " needs at least one thread.");
+        }
+        if (compOrDecompArg.equals(FLAG_DECOMPRESS) && options.has(OPTION_LINES)) {
+            lineRange(options);
+        }
+        if (options.has(OPTION_SHARED_DICTIONARY)) {
+            if (!compOrDecompArg.equals(FLAG_COMPRESS)) {
+                throw new IllegalArgumentException("--" + OPTION_SHARED_DICTIONARY + " is only for compressing; compressed files name their shared dictionary themselves.");
+            }
+            DictionaryStore.checkId(options.get(OPTION_SHARED_DICTIONARY, ""));
+        }
+        if (options.has(OPTION_APPEND) && !compOrDecompArg.equals(FLAG_COMPRESS)) {
+            throw new IllegalArgumentException("--" + OPTION_APPEND + " only works when compressing.");
+        }
+        if (options.has(OPTION_APPEND) && (options.has(OPTION_STREAM) || options.has(OPTION_OPTIMAL) || options.has(OPTION_PARALLEL)
+                || options.has(OPTION_BLOCK) || options.has(OPTION_SHARED_DICTIONARY))) {
+            throw new IllegalArgumentException("--" + OPTION_APPEND + " keeps the file's own dictionary and blocks, and can't be combined with --"
+                    + OPTION_STREAM + ", --" + OPTION_OPTIMAL + ", --" + OPTION_PARALLEL + ", --" + OPTION_BLOCK + " or --" + OPTION_SHARED_DICTIONARY + ".");
+        }
+    }
+
+    /**
+     * Runs a checked job against the files in dir, measuring it if --metrics asks for that.
+     * @return the id of a trained dictionary, or null for any other job
+     */
+    private static String runJob(Path dir, String compOrDecompArg, RunOptions options, CodecLayout layout) throws IOException {
+        final List<CompressionStrategy> compStrategies = sharedStrategiesFor(layout);
+        if (compOrDecompArg.equals(FLAG_TRAIN)) {
+            return runTraining(dir, compStrategies, layout, options);
+        }
+        final boolean measured = options.has(OPTION_METRICS) && (compOrDecompArg.equals(FLAG_COMPRESS) || compOrDecompArg.equals(FLAG_DECOMPRESS));
+        if (!measured) {
+            runOperation(dir, compOrDecompArg, compStrategies, layout, options, null);
+            return null;
+        }
+        CodecMetrics metrics = new CodecMetrics(compOrDecompArg.equals(FLAG_COMPRESS) ? "compress" : "decompress", compStrategies);
+        metrics.register();
+        try {
+            // JMX takes a while to come up the first time, so the clock only starts now
+            metrics.start();
+            runOperation(dir, compOrDecompArg, compStrategies, layout, options, metrics);
+            metrics.finish();
+            writeToFile(dir.resolve(options.get(OPTION_METRICS, FILENAME_METRICS)).toString(), metrics.summary());
+        } finally {
+            metrics.unregister();
+        }
+        return null;
+    }
+
+    /**
+     * Serves jobs on the --socket until the JVM is stopped, running up to --parallel of them at once.
+     */
+    private static void runService(RunOptions options) throws IOException {
+        final Path socket = Paths.get(options.get(OPTION_SOCKET, FILENAME_SOCKET));
+        final int workers = options.getInt(OPTION_PARALLEL, Runtime.getRuntime().availableProcessors());
+        CompressionService service = new CompressionService(socket, workers, SIM::runJob);
+        Runtime.getRuntime().addShutdownHook(new Thread(service::close));
+        System.err.println("Serving on " + socket + " with " + workers + " workers.");
+        service.serve();
+    }
+
+    /**
+     * Runs whatever compOrDecompArg asks for, on the files in dir.
+     * @param metrics where to record the run, or null
+     */
+    private static void runOperation(Path dir, String compOrDecompArg, List<CompressionStrategy> compStrategies, CodecLayout layout, RunOptions options, CodecMetrics metrics) throws IOException {
         String output = "";
         String outputFilename = "";
 
-        if (compOrDecompArg.equals(FLAG_COMPRESS)) {
-            CompressionInput compIn = new CompressionInput(FILENAME_COMPRESSION_INPUT);
-            output = runCompression(compIn, compStrategies, false);
-            outputFilename = FILENAME_COMPRESSION_OUTPUT;
+        final boolean writesOwnOutput = options.has(OPTION_STREAM) || options.has(OPTION_BINARY);
+        if (compOrDecompArg.equals(FLAG_COMPRESS) && options.has(OPTION_APPEND)) {
+            runAppend(dir, layout, options, metrics);
+            return;
+        } else if (compOrDecompArg.equals(FLAG_COMPRESS)) {
+            // the text goes straight to cout.txt as it is encoded, the same as runCompression would give
+            runFileCompression(dir, compStrategies, layout, options, metrics);
+            return;
+        } else if (compOrDecompArg.equals(FLAG_DECOMPRESS) && options.has(OPTION_LINES)) {
+            runRangeDecompression(dir, options);
+            return;
+        } else if (compOrDecompArg.equals(FLAG_DECOMPRESS) && options.has(OPTION_PARALLEL)) {
+            runParallelDecompression(dir, layout, options);
+            return;
+        } else if (compOrDecompArg.equals(FLAG_DECOMPRESS) && writesOwnOutput) {
+            runFileDecompression(dir, layout, options, metrics);
+            return;
+        } else if (compOrDecompArg.equals(FLAG_TEXT_TO_BINARY)) {
+            try (CompressedBitInput in = new StreamingDecompressionInput(fileIn(dir, FILENAME_DECOMPRESSION_INPUT), DICTIONARY_SEPARATOR);
+                 CompressedFileOutput out = BinaryCompressionOutput.create(fileIn(dir, FILENAME_BINARY_DECOMPRESSION_INPUT), layout, null)) {
+                copyCompressed(in, out, layout);
+            }
+            return;
+        } else if (compOrDecompArg.equals(FLAG_BINARY_TO_TEXT)) {
+            try (BinaryDecompressionInput in = new BinaryDecompressionInput(fileIn(dir, FILENAME_BINARY_DECOMPRESSION_INPUT));
+                 CompressedFileOutput out = StreamingCompressionOutput.create(fileIn(dir, FILENAME_DECOMPRESSION_INPUT), in.getLayout().formatBits(), OUTPUT_WIDTH, DICTIONARY_SEPARATOR)) {
+                copyCompressed(in, out, in.getLayout());
+            }
+            return;
         } else if (compOrDecompArg.equals(FLAG_DECOMPRESS)) {
-            DecompressionInput decompIn = new DecompressionInput(FILENAME_DECOMPRESSION_INPUT, compStrategies, DICTIONARY_SEPARATOR, FORMAT_BITS);
-            output = runDecompression(decompIn, compStrategies);
-            outputFilename = FILENAME_DECOMPRESSION_OUTPUT;
+            DecompressionInput decompIn = new DecompressionInput(fileIn(dir, FILENAME_DECOMPRESSION_INPUT), compStrategies, DICTIONARY_SEPARATOR, layout.formatBits());
+            Dictionary dict = decompIn.sharedDictionaryId() == null
+                    ? new Dictionary(decompIn, layout.dictionaryIndexBits())
+                    : sharedDictionary(dir, decompIn.sharedDictionaryId(), layout, options);
+            output = runDecompression(decompIn, dict, compStrategies, layout, metrics);
+            outputFilename = fileIn(dir, FILENAME_DECOMPRESSION_OUTPUT);
         } else {
-            System.err.println("Error, unrecognized argument '"+compOrDecompArg+"'.");
-            System.exit(4);
+            throw new IllegalArgumentException("unrecognized argument '" + compOrDecompArg + "'.");
         }
 
         writeToFile(outputFilename, output);
     }
 
-    private static void runTesting(List<CompressionStrategy> compStrategies) throws IOException {
+    /**
+     * @return the path of the file with this name in dir
+     */
+    private static String fileIn(Path dir, String filename) {
+        return dir.resolve(filename).toString();
+    }
+
+    private static void runTesting() throws IOException {
 
+        List<CompressionStrategy> compStrategies = strategiesFor(DEFAULT_LAYOUT);
         CompressionInput compIn = new CompressionInput(FILENAME_COMPRESSION_INPUT);
-        String compOut = runCompression(compIn, compStrategies, true);
+        String compOut = runCompression(compIn, compStrategies, DEFAULT_LAYOUT, RunOptions.NONE, null, true);
         System.out.println("=================== COMPRESSION OUT ===================");
         System.out.println(compOut);
         System.out.println("=================== END COMPRESSION OUT ===================");
         writeToFile("max-compressed-sep.txt", compOut);
-        writeToFile("max-compressed-smooshed.txt", runCompression(compIn, compStrategies, false));
+        writeToFile("max-compressed-smooshed.txt", runCompression(compIn, compStrategies, DEFAULT_LAYOUT, RunOptions.NONE, null, false));
 
         String[] compOutLines = compOut.split("\n");
-        DecompressionInput decompIn = new DecompressionInput("max-compressed-smooshed.txt", compStrategies, DICTIONARY_SEPARATOR, FORMAT_BITS);
-        String decompOut = runDecompression(decompIn, compStrategies);
+        DecompressionInput decompIn = new DecompressionInput("max-compressed-smooshed.txt", compStrategies, DICTIONARY_SEPARATOR, DEFAULT_LAYOUT.formatBits());
+        String decompOut = runDecompression(decompIn, compStrategies, DEFAULT_LAYOUT, null);
 
         System.out.println("=================== DECOMPRESSION OUT ===================");
         System.out.println(decompOut);
@@ -106,49 +669,14 @@ public class SIM {
         writeToFile("max-decompressed.txt", decompOut);
     }
 
-    private static String runCompression(CompressionInput input, List<CompressionStrategy> compStrategies, boolean debugOut) throws IOException {
-
-        CompressionOutputBuilder outputBuilder = new CompressionOutputBuilder(FORMAT_BITS, OUTPUT_WIDTH, debugOut);
-
-        // Run a pass over time file counting the number of occurances of a given binary.
-        Dictionary dict = new Dictionary(input, DICTIONARY_NUM_BITS, DICTIONARY_SIZE);
+    /**
+     * @param metrics where to record the run, or null
+     */
+    static String runCompression(CompressionInput input, List<CompressionStrategy> compStrategies, CodecLayout layout, RunOptions options, CodecMetrics metrics, boolean debugOut) throws IOException {
 
-        // run compressions
-        // for each uncompressed input line...
-        int currLine=0;
-        while (currLine!=input.size()) {
-            // find the most efficient compression mechanism.
-            int bestMethodFormat = -1;
-            int bestMethodBitsUsed = Integer.MAX_VALUE;
-            int bestMethodLinesConsumed = 0;
-            String bestMethodOutput = "";
-            for (int compStratI = 0; compStratI != compStrategies.size(); ++compStratI) {
-                CompressionStrategy strategy = compStrategies.get(compStratI);
-                // TODO remove after every method is implemented
-                if (strategy == null) {
-                    continue;
-                }
-                CompressionResult result = strategy.compress(dict, input, currLine);
-                // if that particular strategy could not compress the input, skip it.
-                if (result == null) {
-                    continue;
-                }
-                int bitsUsed = strategy.getEncodingLength();
-                int linesConsumed = result.getLinesConsumed();
-                String compressedLine = result.getCompressedLine();
-                if (bitsUsed < bestMethodBitsUsed) {
-                    bestMethodFormat = compStratI;
-                    bestMethodBitsUsed = bitsUsed;
-                    bestMethodLinesConsumed = linesConsumed;
-                    bestMethodOutput = compressedLine;
-                }
-            }
-            // awesome! we found the best compression method.
-            outputBuilder.add(bestMethodFormat, bestMethodOutput);
-            // increment currLine by however many were consumed by the compression method.
-            currLine += bestMethodLinesConsumed;
-        }
+        CompressionOutputBuilder outputBuilder = new CompressionOutputBuilder(layout.formatBits(), OUTPUT_WIDTH, debugOut);
 
+        Dictionary dict = compressInto(input, compStrategies, layout, options, sharedDictionary(WORKING_DIR, options, layout), outputBuilder, null, metrics);
 
         // create final output, inc. dictionary
         StringBuilder output = new StringBuilder();
@@ -161,808 +689,4891 @@ public class SIM {
         return output.toString();
     }
 
-    private static String runDecompression(DecompressionInput input, List<CompressionStrategy> compStrategies) {
-        DecompressionOutputBuilder output = new DecompressionOutputBuilder();
+    private static CompressionInput readCompressionInput(Path dir, RunOptions options) throws IOException {
+        if (options.has(OPTION_MMAP)) {
+            return new CompressionInput(MappedWordReader.readWords(fileIn(dir, FILENAME_COMPRESSION_INPUT)));
+        }
+        return new CompressionInput(fileIn(dir, FILENAME_COMPRESSION_INPUT));
+    }
+
+    /**
+     * Builds the dictionary for an in-memory input and encodes every line into outputBuilder.
+     * @param shared the --shared-dictionary to encode with, or null to build one from input
+     * @param blocks if not null, the stream is split into blocks which are recorded here
+     * @param metrics where to record the run, or null
+     * @return the dictionary used, which the caller still has to write out
+     */
+    static Dictionary compressInto(CompressionInput input, List<CompressionStrategy> compStrategies, CodecLayout layout, RunOptions options, Dictionary shared, CompressionOutput outputBuilder, BlockIndex blocks, CodecMetrics metrics) {
+        // in parallel mode both the dictionary count and the strategy decisions are spread over a pool
+        ForkJoinPool pool = null;
+        if (options.has(OPTION_PARALLEL)) {
+            pool = new ForkJoinPool(options.getInt(OPTION_PARALLEL, Runtime.getRuntime().availableProcessors()));
+        }
+
+        // Run a pass over time file counting the number of occurances of a given binary, unless the dictionary is shared.
+        Dictionary dict = shared != null
+                ? shared
+                : buildDictionary(Dictionary.countInput(input, pool), compStrategies, layout, options);
+
+        // optionally answer the dictionary strategies from a precomputed index or a cache of earlier decisions.
+        Supplier<DecisionSource> decisionSources = decisionSourcesFor(dict, compStrategies, options, metrics);
+        DecisionSource decisions = decisionSources == null ? null : decisionSources.get();
+        // in parallel mode the (position independent) dictionary decisions for every line are worked out up front
+        //  on a pool, and the loop below just reads them back. RLE still runs in order, so output is unchanged.
+        if (pool != null) {
+            if (decisionSources == null) {
+                decisionSources = () -> new StrategyDecisions(dict, compStrategies);
+            }
+            try {
+                decisions = PrecomputedDecisions.compute(input, decisionSources, pool, PARALLEL_CHUNK_LINES);
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        if (metrics != null) {
+            metrics.addLines(input.size());
+            outputBuilder = metrics.counting(outputBuilder, layout.formatBits());
+        }
+        if (options.has(OPTION_OPTIMAL)) {
+            OptimalParse.encode(input, dict, compStrategies, decisions, outputBuilder, layout.formatBits(), metrics);
+        } else {
+            encodeInstructions(input, dict, compStrategies, decisions, outputBuilder, layout.formatBits(), blocks, metrics);
+        }
+        return dict;
+    }
+
+    /**
+     * Compresses FILENAME_COMPRESSION_INPUT straight into a file (text or --binary), either all in memory or,
+     *  with --stream, a window at a time.
+     */
+    private static void runFileCompression(Path dir, List<CompressionStrategy> compStrategies, CodecLayout layout, RunOptions options, CodecMetrics metrics) throws IOException {
+        BlockIndex blocks = options.has(OPTION_BLOCK)
+                ? new BlockIndex(options.getInt(OPTION_BLOCK, DEFAULT_BLOCK_INSTRUCTIONS))
+                : null;
+        // loaded before the output is created, so a missing or unfit dictionary leaves an existing output alone
+        final Dictionary shared = sharedDictionary(dir, options, layout);
+        try (CompressedFileOutput output = options.has(OPTION_BINARY)
+                ? BinaryCompressionOutput.create(fileIn(dir, FILENAME_BINARY_COMPRESSION_OUTPUT), layout, blocks)
+                : StreamingCompressionOutput.create(fileIn(dir, FILENAME_COMPRESSION_OUTPUT), layout.formatBits(), OUTPUT_WIDTH, DICTIONARY_SEPARATOR)) {
+            if (options.has(OPTION_STREAM)) {
+                runStreamingCompression(fileIn(dir, FILENAME_COMPRESSION_INPUT), output, compStrategies, layout, options, shared, blocks, metrics);
+            } else {
+                CompressionInput compIn = readCompressionInput(dir, options);
+                output.finish(compressInto(compIn, compStrategies, layout, options, shared, output, blocks, metrics));
+            }
+        }
+    }
+
+    /**
+     * Compresses inputFilename into output in two passes over the file: one to count words for the dictionary,
+     *  one to encode. Only a small window of input lines and the current output line are held in memory, apart
+     *  from the dictionary counts themselves. --parallel has no effect here, since it needs every line in memory
+     *  at once.
+     * @param shared the --shared-dictionary to encode with, or null to build one from the input
+     */
+    private static void runStreamingCompression(String inputFilename, CompressedFileOutput output, List<CompressionStrategy> compStrategies, CodecLayout layout, RunOptions options, Dictionary shared, BlockIndex blocks, CodecMetrics metrics) throws IOException {
+        // first pass: count, or with a shared dictionary just find the number of lines
+        final Dictionary dict;
+        final int size;
+        if (shared != null) {
+            size = StreamingCompressionInput.countWords(inputFilename, null);
+            dict = shared;
+        } else {
+            // the counts can be a big map, so they are let go before encoding
+            WordCounts counts = new WordCounts(layout.dictionarySize());
+            size = StreamingCompressionInput.countWords(inputFilename, counts);
+            dict = buildDictionary(counts, compStrategies, layout, options);
+        }
+
+        Supplier<DecisionSource> decisionSources = decisionSourcesFor(dict, compStrategies, options, metrics);
+        DecisionSource decisions = decisionSources == null ? null : decisionSources.get();
+
+        // second pass: encode straight to the output file
+        try (StreamingCompressionInput input = new StreamingCompressionInput(inputFilename, size)) {
+            CompressionOutput instructions = output;
+            if (metrics != null) {
+                metrics.addLines(size);
+                instructions = metrics.counting(output, layout.formatBits());
+            }
+            encodeInstructions(input, dict, compStrategies, decisions, instructions, layout.formatBits(), blocks, metrics);
+            output.finish(dict);
+        }
+    }
+
+    /**
+     * Appends the lines of FILENAME_COMPRESSION_INPUT to the existing FILENAME_COMPRESSION_OUTPUT (or --binary
+     *  FILENAME_BINARY_COMPRESSION_OUTPUT), keeping its dictionary. Only the new lines are encoded, carrying on
+     *  from the stream's last line, and only what comes after the stream (padding, dictionary, block index) is
+     *  written again. Finding the end of a binary file with a block index means decoding its last block; any
+     *  other file is decoded once from the start, which is still far cheaper than compressing it again.
+     *
+     *  The file decodes to the old lines followed by the new ones, but it isn't byte for byte what compressing
+     *  them all at once would write: the dictionary is the file's rather than one counted from every line, and an
+     *  RLE run ends where the old lines did instead of reaching across. Where no run crosses the join and the
+     *  dictionary is the same (a shared one), it is.
+     */
+    private static void runAppend(Path dir, CodecLayout layout, RunOptions options, CodecMetrics metrics) throws IOException {
+        final boolean binary = options.has(OPTION_BINARY);
+        final String filename = fileIn(dir, binary ? FILENAME_BINARY_COMPRESSION_OUTPUT : FILENAME_COMPRESSION_OUTPUT);
+        final CodecLayout fileLayout;
+        final Dictionary dict;
+        final StreamEnd end;
+        BlockIndex blocks = null;
+        try (CompressedBitInput existing = binary
+                ? new BinaryDecompressionInput(filename)
+                : new StreamingDecompressionInput(filename, DICTIONARY_SEPARATOR)) {
+            fileLayout = layoutOf(existing, layout);
+            dict = dictionaryOf(dir, existing, fileLayout, options);
+            if (binary) {
+                BinaryDecompressionInput binaryInput = (BinaryDecompressionInput) existing;
+                if (binaryInput.getStreamStart() != BinaryFormat.HEADER_BYTES) {
+                    throw new IllegalArgumentException("only version " + BinaryFormat.VERSION + " binary files can be appended to, convert '" + filename + "' first.");
+                }
+                blocks = binaryInput.getBlockIndex();
+            }
+            end = StreamEnd.of(existing, dict, sharedStrategiesFor(fileLayout), fileLayout.formatBits());
+        }
+        final List<CompressionStrategy> compStrategies = sharedStrategiesFor(fileLayout);
+
+        CompressionInput input = readCompressionInput(dir, options);
+        if (metrics != null) {
+            metrics.addLines(input.size());
+        }
+        if (end.lines() != 0) {
+            // line 0 is the stream's last line, for RLE to look back on
+            int[] words = new int[input.size() + 1];
+            words[0] = end.lastWord();
+            for (int i = 0; i != input.size(); ++i) {
+                words[i + 1] = input.getWord(i);
+            }
+            input = new CompressionInput(words);
+        }
+
+        Supplier<DecisionSource> decisionSources = decisionSourcesFor(dict, compStrategies, options, metrics);
+        DecisionSource decisions = decisionSources == null ? null : decisionSources.get();
+        try (CompressedFileOutput output = binary
+                ? BinaryCompressionOutput.append(filename, fileLayout, blocks, end.bits())
+                : StreamingCompressionOutput.append(filename, fileLayout.formatBits(), OUTPUT_WIDTH, DICTIONARY_SEPARATOR, end.bits())) {
+            CompressionOutput instructions = metrics == null ? output : metrics.counting(output, fileLayout.formatBits());
+            encodeInstructions(input, end.lines() == 0 ? null : end, dict, compStrategies, decisions, instructions, fileLayout.formatBits(), blocks, metrics);
+            output.finish(dict);
+        }
+    }
+
+    /**
+     * Trains a dictionary on FILENAME_COMPRESSION_INPUT, picked the way compressing it would, and saves it to
+     *  the --dictionaries store. Concatenate a corpus into the one file to train on all of it.
+     * @return the id to compress with, see OPTION_SHARED_DICTIONARY
+     */
+    private static String runTraining(Path dir, List<CompressionStrategy> compStrategies, CodecLayout layout, RunOptions options) throws IOException {
+        WordCounts counts = new WordCounts(layout.dictionarySize());
+        StreamingCompressionInput.countWords(fileIn(dir, FILENAME_COMPRESSION_INPUT), counts);
+        return storeOf(dir, options).save(buildDictionary(counts, compStrategies, layout, options));
+    }
+
+    /**
+     * @return the --dictionaries store, relative to dir
+     */
+    private static DictionaryStore storeOf(Path dir, RunOptions options) {
+        return new DictionaryStore(dir.resolve(options.get(OPTION_DICTIONARIES, FILENAME_DICTIONARIES)));
+    }
+
+    /**
+     * @return the shared dictionary with this id from the --dictionaries store of a job in dir
+     */
+    static Dictionary sharedDictionary(Path dir, String id, CodecLayout layout, RunOptions options) throws IOException {
+        return storeOf(dir, options).load(id, layout);
+    }
+
+    /**
+     * @return the dictionary --shared-dictionary asks a job in dir to compress with, or null if it doesn't
+     */
+    static Dictionary sharedDictionary(Path dir, RunOptions options, CodecLayout layout) throws IOException {
+        return options.has(OPTION_SHARED_DICTIONARY)
+                ? sharedDictionary(dir, options.get(OPTION_SHARED_DICTIONARY, ""), layout, options)
+                : null;
+    }
+
+    /**
+     * @return the dictionary a compressed file in dir carries, or the shared one it names
+     */
+    private static Dictionary dictionaryOf(Path dir, CompressedBitInput input, CodecLayout layout, RunOptions options) throws IOException {
+        return input.getSharedDictionaryId() == null
+                ? new Dictionary(input.getDictionary(), layout.dictionaryIndexBits())
+                : sharedDictionary(dir, input.getSharedDictionaryId(), layout, options);
+    }
+
+    /**
+     * Picks the dictionary from the input's word counts, the way --dictionary asks for.
+     */
+    private static Dictionary buildDictionary(WordCounts counts, List<CompressionStrategy> compStrategies, CodecLayout layout, RunOptions options) {
+        if (options.get(OPTION_DICTIONARY, DICTIONARY_FREQUENCY).equals(DICTIONARY_COVERAGE)) {
+            int[] entries = CoverageSelection.select(counts, layout.dictionarySize(), COVERAGE_CANDIDATES, compStrategies, layout.dictionaryIndexBits(), layout.formatBits());
+            return new Dictionary(entries, layout.dictionaryIndexBits());
+        }
+        return new Dictionary(counts, layout.dictionaryIndexBits(), layout.dictionarySize());
+    }
+
+    /**
+     * @param metrics if not null, every DecisionCache made is counted in here
+     * @return a supplier of the DecisionSource chosen by options, or null to call every strategy directly
+     */
+    private static Supplier<DecisionSource> decisionSourcesFor(Dictionary dict, List<CompressionStrategy> compStrategies, RunOptions options, CodecMetrics metrics) {
+        if (options.has(OPTION_NEIGHBORHOOD_INDEX)) {
+            // the index is read only once built, so every thread can share it
+            NeighborhoodIndex index = new NeighborhoodIndex(dict, compStrategies);
+            return () -> index;
+        } else if (options.has(OPTION_DECISION_CACHE)) {
+            final int cacheSize = options.getInt(OPTION_DECISION_CACHE, DEFAULT_DECISION_CACHE_SIZE);
+            // one per worker with --parallel, so the metrics sum them
+            return () -> {
+                DecisionCache cache = new DecisionCache(dict, compStrategies, cacheSize);
+                if (metrics != null) {
+                    metrics.addCache(cache);
+                }
+                return cache;
+            };
+        } else if (dict.size() > DEFAULT_DICTIONARY_SIZE) {
+            // the dictionary strategies scan every entry, so past the default size one index probe per line is cheaper
+            NeighborhoodIndex index = new NeighborhoodIndex(dict, compStrategies);
+            return () -> index;
+        }
+        return null;
+    }
+
+    /**
+     * @param blocks if not null, a new block is started every blocks.instructionsPerBlock() instructions. The
+     *  first instruction of a block is never RLE, so a block decodes without the one before it.
+     * @param metrics if not null, every strategy call is timed and counted here
+     */
+    private static void encodeInstructions(CompressionInput input, Dictionary dict, List<CompressionStrategy> compStrategies, DecisionSource decisions, CompressionOutput outputBuilder, int formatBits, BlockIndex blocks, CodecMetrics metrics) {
+        encodeInstructions(input, null, dict, compStrategies, decisions, outputBuilder, formatBits, blocks, metrics);
+    }
+
+    /**
+     * @param after the end of the stream being appended to, whose last line is line 0 of input; or null to
+     *  start a new stream at line 0
+     */
+    private static void encodeInstructions(CompressionInput input, StreamEnd after, Dictionary dict, List<CompressionStrategy> compStrategies, DecisionSource decisions, CompressionOutput outputBuilder, int formatBits, BlockIndex blocks, CodecMetrics metrics) {
+        // strategies are tried cheapest first, the decision source standing in for the ones it covers
+        StrategySchedule schedule = new StrategySchedule(compStrategies, decisions, strategy -> true, metrics);
+        // run compressions
+        // for each uncompressed input line...
+        int currLine=0;
+        long instructionCount = 0;
+        long bitOffset = 0;
+        long firstLine = 0;
+        if (after != null) {
+            currLine = 1;
+            instructionCount = after.instructions();
+            bitOffset = after.bits();
+            firstLine = after.lines() - 1;
+            schedule.resumeAfter(after.lastWord(), after.endsInRun());
+        }
+        while (currLine!=input.size()) {
+            final boolean blockStart = blocks != null && instructionCount % blocks.instructionsPerBlock() == 0;
+            if (blockStart) {
+                blocks.add(bitOffset, firstLine + currLine);
+            }
+            // find the most efficient compression mechanism.
+            schedule.choose(dict, input, currLine, blockStart);
+            // awesome! we found the best compression method.
+            outputBuilder.add(schedule.format(), schedule.payload(), schedule.bitsUsed());
+            bitOffset += formatBits + schedule.bitsUsed();
+            ++instructionCount;
+            // increment currLine by however many were consumed by the compression method.
+            currLine += schedule.linesConsumed();
+        }
+    }
 
-        // Run a pass over the input file counting the number of occurances of a given binary.
-        Dictionary dict = new Dictionary(input, DICTIONARY_NUM_BITS);
+    /**
+     * @param metrics where to record the run, or null
+     */
+    static String runDecompression(DecompressionInput input, List<CompressionStrategy> compStrategies, CodecLayout layout, CodecMetrics metrics) {
+        return runDecompression(input, new Dictionary(input, layout.dictionaryIndexBits()), compStrategies, layout, metrics);
+    }
+
+    /**
+     * @param dict the input's dictionary, e.g. the shared one it names
+     * @param metrics where to record the run, or null
+     */
+    static String runDecompression(DecompressionInput input, Dictionary dict, List<CompressionStrategy> compStrategies, CodecLayout layout, CodecMetrics metrics) {
+        DecompressionOutputBuilder builder = new DecompressionOutputBuilder();
+        DecompressionOutput output = metrics == null ? builder : metrics.counting(builder);
 
+        ExpansionTables tables = new ExpansionTables(compStrategies.toArray(new CompressionStrategy[0]), dict);
         int currLine = 0;
         while (currLine != input.cmpdInstrucionSize()) {
-            String currLineStr = input.getCmpdInstruction(currLine);
+            int currLinePayload = input.getCmpdInstruction(currLine);
             int format = input.getCmpdFormat(currLine);
-            CompressionStrategy cs = compStrategies.get(format);
-            cs.decompress(dict, output, currLineStr);
+            tables.decompress(format, currLinePayload, output);
+            if (metrics != null) {
+                metrics.instruction(format, layout.formatBits() + compStrategies.get(format).getEncodingLength());
+            }
+
+            ++currLine;
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Decompresses FILENAME_DECOMPRESSION_INPUT (or the --binary FILENAME_BINARY_DECOMPRESSION_INPUT) into
+     *  FILENAME_DECOMPRESSION_OUTPUT in a single pass over the compressed bits. Only the previous word is
+     *  remembered, for RLE, so memory does not grow with the file.
+     */
+    private static void runFileDecompression(Path dir, CodecLayout layout, RunOptions options, CodecMetrics metrics) throws IOException {
+        try (CompressedBitInput input = openCompressedInput(dir, options);
+             StreamingDecompressionOutput output = new StreamingDecompressionOutput(Files.newBufferedWriter(dir.resolve(FILENAME_DECOMPRESSION_OUTPUT)))) {
+            CodecLayout fileLayout = layoutOf(input, layout);
+            Dictionary dict = dictionaryOf(dir, input, fileLayout, options);
+            DecodeEngine engine = new DecodeEngine(sharedStrategiesFor(fileLayout), fileLayout.formatBits());
+            if (metrics == null) {
+                engine.decode(input, dict, output);
+            } else {
+                engine.decode(input, dict, output, metrics);
+            }
+            output.finish();
+        }
+    }
+
+    private static CompressedBitInput openCompressedInput(Path dir, RunOptions options) throws IOException {
+        return options.has(OPTION_BINARY)
+                ? new BinaryDecompressionInput(fileIn(dir, FILENAME_BINARY_DECOMPRESSION_INPUT))
+                : new StreamingDecompressionInput(fileIn(dir, FILENAME_DECOMPRESSION_INPUT), DICTIONARY_SEPARATOR);
+    }
+
+    /**
+     * @return the layout recorded in a binary file's header, or for a text file (which has none) the configured one
+     */
+    private static CodecLayout layoutOf(CompressedBitInput input, CodecLayout configured) {
+        return input instanceof BinaryDecompressionInput ? ((BinaryDecompressionInput) input).getLayout() : configured;
+    }
+
+    /**
+     * Decompresses FILENAME_DECOMPRESSION_INPUT (or the --binary FILENAME_BINARY_DECOMPRESSION_INPUT) into
+     *  FILENAME_DECOMPRESSION_OUTPUT on a pool of threads. The output is identical to the serial decoders'.
+     */
+    private static void runParallelDecompression(Path dir, CodecLayout layout, RunOptions options) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(options.getInt(OPTION_PARALLEL, Runtime.getRuntime().availableProcessors()));
+        try (CompressedBitInput input = openCompressedInput(dir, options);
+             OutputStream output = Files.newOutputStream(dir.resolve(FILENAME_DECOMPRESSION_OUTPUT))) {
+            CodecLayout fileLayout = layoutOf(input, layout);
+            Dictionary dict = dictionaryOf(dir, input, fileLayout, options);
+            new ParallelDecoder(sharedStrategiesFor(fileLayout), fileLayout.formatBits(), PARALLEL_SEGMENT_INSTRUCTIONS).decode(input, dict, output, pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Decompresses only output lines [from, to) of the --binary FILENAME_BINARY_DECOMPRESSION_INPUT into
+     *  FILENAME_DECOMPRESSION_OUTPUT. With a block index only the block holding line from onwards is decoded.
+     */
+    private static void runRangeDecompression(Path dir, RunOptions options) throws IOException {
+        final long[] range = lineRange(options);
+        try (BinaryDecompressionInput input = new BinaryDecompressionInput(fileIn(dir, FILENAME_BINARY_DECOMPRESSION_INPUT));
+             RangeDecoder decoder = new RangeDecoder(input, dictionaryOf(dir, input, input.getLayout(), options), sharedStrategiesFor(input.getLayout()));
+             StreamingDecompressionOutput output = new StreamingDecompressionOutput(Files.newBufferedWriter(dir.resolve(FILENAME_DECOMPRESSION_OUTPUT)))) {
+            decoder.decode(range[0], range[1], output);
+            output.finish();
+        }
+    }
+
+    /**
+     * @return the --lines range as {from, to}
+     * @throws IllegalArgumentException if it isn't from:to with 0 <= from <= to
+     */
+    private static long[] lineRange(RunOptions options) {
+        final String range = options.get(OPTION_LINES, "");
+        final int colon = range.indexOf(':');
+        long from = -1;
+        long to = -1;
+        try {
+            from = Long.parseLong(range.substring(0, Math.max(colon, 0)));
+            to = Long.parseLong(range.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        if (colon == -1 || from < 0 || to < from) {
+            throw new IllegalArgumentException("--" + OPTION_LINES + " expects from:to with 0 <= from <= to, got '" + range + "'.");
+        }
+        return new long[] {from, to};
+    }
+
+    /**
+     * Copies compressed bits and the dictionary from one container format to the other, bit for bit. A shared
+     *  dictionary stays a reference.
+     */
+    private static void copyCompressed(CompressedBitInput in, CompressedFileOutput out, CodecLayout layout) throws IOException {
+        while (in.hasAtLeast(Integer.SIZE)) {
+            out.addBits(in.readBits(Integer.SIZE), Integer.SIZE);
+        }
+        while (in.hasAtLeast(1)) {
+            out.addBits(in.readBits(1), 1);
+        }
+        out.finish(new Dictionary(in.getDictionary(), layout.dictionaryIndexBits(), in.getSharedDictionaryId()));
+    }
+
+}
+
+
+/* ======= Compression Strategies ======= */
+
+/**
+ * A strategy works purely on packed 32-bit words. The compressed payload is returned as an int whose
+ *  low getEncodingLength() bits hold the encoding (most significant field first).
+ */
+interface CompressionStrategy {
+    int getEncodingLength();
+    CompressionResult compress(Dictionary dict, CompressionInput input, int inputToCompress);
+    void decompress(Dictionary dict, DecompressionOutput outputBuilder, int payload);
+
+    /**
+     * @return whether compress() depends on earlier calls of the same encoding run (through state the schedule
+     *  keeps for it, see RunLengthState), in which case it is called for every instruction start even when a
+     *  cheaper strategy has already matched
+     */
+    default boolean keepsState() {
+        return false;
+    }
+}
+
+/**
+ * A DictionaryStrategy only looks at the word being compressed and the dictionary (never at neighbouring
+ *  lines), and can list every word it is able to encode. That makes its results safe to precompute.
+ */
+interface DictionaryStrategy extends CompressionStrategy {
+    /**
+     * Visits every word this strategy can encode with the given dictionary. Words may be visited more than once.
+     * @param dict
+     * @param visitor
+     */
+    void forEachEncodable(Dictionary dict, IntConsumer visitor);
+
+    /**
+     * The word a payload of this strategy decodes to. Only depends on the payload and the dictionary.
+     * @param dict
+     * @param payload
+     * @return
+     */
+    int expand(Dictionary dict, int payload);
+}
+
+class OriginalBinaryEncodingStrategy implements CompressionStrategy {
+
+    private static final int ENCODING_LEN = 32;
+
+    @Override
+    public int getEncodingLength() {
+        return ENCODING_LEN;
+    }
+
+    @Override
+    public CompressionResult compress(Dictionary dict, CompressionInput input, int inputToCompress) {
+        return new CompressionResult(input.getWord(inputToCompress), 1);
+    }
+
+    @Override
+    public void decompress(Dictionary dict, DecompressionOutput outputBuilder, int payload) {
+        outputBuilder.add(payload);
+    }
+}
+
+class RunLengthEncodingStrategy implements CompressionStrategy {
+
+    private static final int LEN_ENCODING = 3;
+    private static final int MAX_VAL = (int) (Math.pow(2, LEN_ENCODING) - 1);
+
+    /**
+     * Compresses inputToCompress as though nothing had been compressed before it.
+     */
+    @Override
+    public CompressionResult compress(Dictionary dict, CompressionInput input, int inputToCompress) {
+        return compress(dict, input, inputToCompress, new RunLengthState());
+    }
+
+    /**
+     * @param state what the earlier calls of this encoding run left behind, updated for the next one
+     */
+    public CompressionResult compress(Dictionary dict, CompressionInput input, int inputToCompress, RunLengthState state) {
+
+        // if the index is zero, it means we can't possibly look back! Return null meaning "can't compress"
+        if (inputToCompress == 0) {
+            state.reset();
+            return null;
+        }
+        // next we want to check if this encoding strategy even applies.
+        // to do that, we look back on the previous line and determine whether
+        //  it matches the current one we are trying to compress.
+        int currLine = input.getWord(inputToCompress);
+        int lastLine = input.getWord(inputToCompress - 1);
+        // let's go ahead and eliminate the case where the input does __not__ match.
+        if (lastLine != currLine) {
+            // RLE doesn't apply, so...
+            state.reset();
+            return null;
+        }
+        // to ensure that RLE isn't used twice in a row,
+        //  we need to check if the last value that was compressed is equal to the current one.
+        if (state.hasLastCompressed && currLine == state.lastCompressed) {
+            state.reset();
+            return null;
+        } else {
+            state.lastCompressed = currLine;
+            state.hasLastCompressed = true;
+        }
+        // ok cool! We're almost there. Now for the fun stuff!
+        // we need to look __ahead__ and see if any future lines
+        //  can also be compressed. Isn't RLE fun?! :D
+        int lookAheadCount = 0;
+        int i = inputToCompress + 1;
+        while (i < input.size() && lookAheadCount < MAX_VAL) {
+            if (input.getWord(i) != currLine) {
+                break;
+            }
+            ++lookAheadCount;
+            ++i;
+        }
+        // linesConsumes = lookAheadCount + 1 since this we must count the current line, too.
+        int linesConsumed = lookAheadCount + 1;
+        return new CompressionResult(lookAheadCount, linesConsumed);
+    }
+
+    /**
+     * @return the most lines a single RLE instruction can repeat
+     */
+    public int maxLines() {
+        return MAX_VAL + 1;
+    }
+
+    /**
+     * @param payload
+     * @return how many lines an RLE instruction with this payload decodes to
+     */
+    public int linesDecoded(int payload) {
+        return payload + 1;
+    }
+
+    @Override
+    public boolean keepsState() {
+        return true;
+    }
+
+    @Override
+    public void decompress(Dictionary dict, DecompressionOutput outputBuilder, int payload) {
+        // the number of times to repeat (+1 due to zero indexing)
+        final int timesToRepeat = linesDecoded(payload);
+        // indexOf prev val to duplicate
+        int toDupe = outputBuilder.previousInstruction();
+        // remove item at index
+        for (int i = 0; i != timesToRepeat; ++i) {
+            outputBuilder.add(toDupe);
+        }
+    }
+
+    @Override
+    public int getEncodingLength() {
+        return LEN_ENCODING;
+    }
+}
+
+/**
+ * RunLengthState is what RLE remembers from one instruction to the next within a single encoding run: the
+ *  word of the last run, used to ensure that RLE isn't used twice in a row. Keeping it here rather than in the
+ *  strategy leaves every strategy free of state, so one strategy list can be shared by any number of runs.
+ */
+final class RunLengthState {
+    int lastCompressed;
+    boolean hasLastCompressed = false;
+
+    /**
+     * Forgets the last run, for when the next instruction starts a new block or follows something else.
+     */
+    void reset() {
+        hasLastCompressed = false;
+    }
+
+    /**
+     * Carries on after lines compressed earlier, the last of them being word: the next line can't use RLE
+     *  if it repeats word and RLE matched word's instruction, whether or not it was used there.
+     */
+    void resumeAfter(int word, boolean inRun) {
+        lastCompressed = word;
+        hasLastCompressed = inRun;
+    }
+}
+
+class DirectMatchEncodingStrategy implements DictionaryStrategy {
+
+    private final int DICT_NUM_BITS;
+
+    public DirectMatchEncodingStrategy(int dictNumBits) {
+        DICT_NUM_BITS = dictNumBits;
+    }
+
+    @Override
+    public int getEncodingLength() {
+        return DICT_NUM_BITS;
+    }
+
+    @Override
+    public CompressionResult compress(Dictionary dict, CompressionInput input, int inputToCompress) {
+        int dictIndex = dict.indexOf(input.getWord(inputToCompress));
+        if (dictIndex == -1) {
+            return null;
+        }
+        return new CompressionResult(dictIndex);
+    }
+
+    @Override
+    public void decompress(Dictionary dict, DecompressionOutput outputBuilder, int payload) {
+        outputBuilder.add(expand(dict, payload));
+    }
+
+    @Override
+    public int expand(Dictionary dict, int payload) {
+        return dict.get(payload);
+    }
+
+    @Override
+    public void forEachEncodable(Dictionary dict, IntConsumer visitor) {
+        for (int dictI = 0; dictI != dict.size(); ++dictI) {
+            visitor.accept(dict.get(dictI));
+        }
+    }
+}
+
+class BitmaskBasedEncodingStrategy implements DictionaryStrategy {
+
+    private final int DICT_INDEX_SIZE;
+    private final int BITMASK_SIZE;
+    private final int STARTING_LOC_SIZE;
+
+    private final int DICT_INDEX_MAX_VAL;
+    private final int BITMASK_MAX_VAL;
+    private final int STARTING_LOC_MAX_VAL;
+    // how many mask locations there are: every place the mask fits in a word, as far as the location field reaches
+    private final int LOCATIONS;
+
+    public BitmaskBasedEncodingStrategy(int dictNumBits, int bitmaskSize, int startingLocSize) {
+        this.DICT_INDEX_SIZE = dictNumBits;
+        this.BITMASK_SIZE = bitmaskSize;
+        this.STARTING_LOC_SIZE = startingLocSize;
+
+        DICT_INDEX_MAX_VAL = maxSizeForBin(DICT_INDEX_SIZE);
+        BITMASK_MAX_VAL = maxSizeForBin(BITMASK_SIZE);
+        STARTING_LOC_MAX_VAL = maxSizeForBin(STARTING_LOC_SIZE);
+        LOCATIONS = Math.min(Formatter.WORD_BITS - BITMASK_SIZE, STARTING_LOC_MAX_VAL + 1);
+    }
+
+    private static int maxSizeForBin(int numBits) {
+        return (int) Math.pow(2, numBits) - 1;
+    }
+
+    @Override
+    public int getEncodingLength() {
+        return DICT_INDEX_SIZE + BITMASK_SIZE + STARTING_LOC_SIZE;
+    }
+
+    private int applyBitmask(int dictEntry, int bitmask, int location) {
+        // location counts from the most significant bit, so line the mask up underneath it and flip.
+        return dictEntry ^ (bitmask << (Formatter.WORD_BITS - BITMASK_SIZE - location));
+    }
+
+    @Override
+    public CompressionResult compress(Dictionary dict, CompressionInput input, int inputToCompress) {
+        int toCompress = input.getWord(inputToCompress);
+        // for every dictionary entry...
+        for(int dictEntryI = 0; dictEntryI != dict.size(); ++dictEntryI) {
+            int diff = toCompress ^ dict.get(dictEntryI);
+            // the classifier picks the same (largest) bitmask the old brute force search would have found first
+            int placement = MatchClassifier.bitmaskPlacement(diff, BITMASK_SIZE, LOCATIONS);
+            if (placement != MatchClassifier.NO_MATCH) {
+                // pack up our fields: location, bitmask, then dictionary index
+                return new CompressionResult((placement << DICT_INDEX_SIZE) | dictEntryI);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void decompress(Dictionary dict, DecompressionOutput outputBuilder, int payload) {
+        outputBuilder.add(expand(dict, payload));
+    }
+
+    @Override
+    public int expand(Dictionary dict, int payload) {
+        int location = (payload >>> (BITMASK_SIZE + DICT_INDEX_SIZE)) & STARTING_LOC_MAX_VAL;
+        int bitmask = (payload >>> DICT_INDEX_SIZE) & BITMASK_MAX_VAL;
+        int dictI = payload & DICT_INDEX_MAX_VAL;
+        int dictEntry = dict.get(dictI);
+        return applyBitmask(dictEntry, bitmask, location);
+    }
+
+    @Override
+    public void forEachEncodable(Dictionary dict, IntConsumer visitor) {
+        for (int dictI = 0; dictI != dict.size(); ++dictI) {
+            int dictEntry = dict.get(dictI);
+            for (int bitmask = BITMASK_MAX_VAL; bitmask != 0; --bitmask) {
+                for (int location = 0; location < LOCATIONS; ++location) {
+                    visitor.accept(applyBitmask(dictEntry, bitmask, location));
+                }
+            }
+        }
+    }
+}
+
+class ConsecMismatchStrategy implements DictionaryStrategy {
+
+    private final int NUM_MISMATCHES;
+    private final int LEN_LOC;
+    private final int LEN_DICT;
+    // mismatch starts run up to where the run would touch the least significant bit, as far as LEN_LOC reaches
+    private final int LOCATIONS;
+
+    public ConsecMismatchStrategy(int numMismatches, int dictNumBits, int locBits) {
+        this.NUM_MISMATCHES = numMismatches;
+        this.LEN_DICT = dictNumBits;
+        this.LEN_LOC = locBits;
+        this.LOCATIONS = Math.min(Formatter.WORD_BITS - NUM_MISMATCHES, 1 << LEN_LOC);
+    }
+
+    @Override
+    public int getEncodingLength() {
+        return LEN_LOC + LEN_DICT;
+    }
+
+    private int applyMismatch(int mismatchStart, int dictEntry) {
+        // a run of NUM_MISMATCHES ones, starting mismatchStart bits in from the most significant bit
+        int mismatch = ((1 << NUM_MISMATCHES) - 1) << (Formatter.WORD_BITS - NUM_MISMATCHES - mismatchStart);
+        return dictEntry ^ mismatch;
+    }
+
+    @Override
+    public CompressionResult compress(Dictionary dict, CompressionInput input, int inputToCompress) {
+        // word which we are attempting to match
+        final int toMatch = input.getWord(inputToCompress);
+        // every dictionary entry
+        for (int dictI = 0; dictI!=dict.size(); ++dictI) {
+            int diff = toMatch ^ dict.get(dictI);
+            int mismatchStart = MatchClassifier.consecutiveMismatchStart(diff, NUM_MISMATCHES, LOCATIONS);
+            if (mismatchStart != MatchClassifier.NO_MATCH) {
+                // we found a match!
+                return new CompressionResult((mismatchStart << LEN_DICT) | dictI);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void decompress(Dictionary dict, DecompressionOutput outputBuilder, int payload) {
+        outputBuilder.add(expand(dict, payload));
+    }
+
+    @Override
+    public int expand(Dictionary dict, int payload) {
+        int location = (payload >>> LEN_DICT) & ((1 << LEN_LOC) - 1);
+        int dictI = payload & ((1 << LEN_DICT) - 1);
+        return applyMismatch(location, dict.get(dictI));
+    }
+
+    @Override
+    public void forEachEncodable(Dictionary dict, IntConsumer visitor) {
+        for (int dictI = 0; dictI != dict.size(); ++dictI) {
+            int dictEntry = dict.get(dictI);
+            for (int mismatchStart = 0; mismatchStart < LOCATIONS; ++mismatchStart) {
+                visitor.accept(applyMismatch(mismatchStart, dictEntry));
+            }
+        }
+    }
+}
+
+class TwoBitAnywhereMismatchStrategy implements DictionaryStrategy {
+
+    private final int LEN_MM;
+    private final int LEN_DICT_I;
+    // mismatch positions the LEN_MM wide fields can reach
+    private final int LOCATIONS;
+
+    public TwoBitAnywhereMismatchStrategy(int dictNumBits, int locBits) {
+        this.LEN_DICT_I = dictNumBits;
+        this.LEN_MM = locBits;
+        this.LOCATIONS = Math.min(Formatter.WORD_BITS, 1 << LEN_MM);
+    }
+
+    @Override
+    public int getEncodingLength() {
+        return LEN_MM * 2 + LEN_DICT_I;
+    }
+
+    private static int applyMismatch(int orig, int mm1, int mm2) {
+        // mismatch positions count from the most significant bit
+        return orig ^ (Integer.MIN_VALUE >>> mm1) ^ (Integer.MIN_VALUE >>> mm2);
+    }
+
+    @Override
+    public CompressionResult compress(Dictionary dict, CompressionInput input, int inputToCompress) {
+        final int toMatch = input.getWord(inputToCompress);
+        // for every dictionary entry
+        for(int dictEntryI = 0; dictEntryI != dict.size(); ++dictEntryI) {
+            int diff = toMatch ^ dict.get(dictEntryI);
+            int mismatches = MatchClassifier.twoBitMismatch(diff, LEN_MM, LOCATIONS);
+            if (mismatches != MatchClassifier.NO_MATCH) {
+                return new CompressionResult((mismatches << LEN_DICT_I) | dictEntryI);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void decompress(Dictionary dict, DecompressionOutput outputBuilder, int payload) {
+        outputBuilder.add(expand(dict, payload));
+    }
+
+    @Override
+    public int expand(Dictionary dict, int payload) {
+        final int mmMask = (1 << LEN_MM) - 1;
+        int mm1 = (payload >>> (LEN_MM + LEN_DICT_I)) & mmMask;
+        int mm2 = (payload >>> LEN_DICT_I) & mmMask;
+        int dictI = payload & ((1 << LEN_DICT_I) - 1);
+        int dictEntry = dict.get(dictI);
+        return applyMismatch(dictEntry, mm1, mm2);
+    }
+
+    @Override
+    public void forEachEncodable(Dictionary dict, IntConsumer visitor) {
+        for (int dictI = 0; dictI != dict.size(); ++dictI) {
+            int dictEntry = dict.get(dictI);
+            // flipping mm1/mm2 the other way around gives the same word, so only visit each pair once
+            for (int mm1 = 0; mm1 < LOCATIONS; ++mm1) {
+                for (int mm2 = mm1 + 1; mm2 < LOCATIONS; ++mm2) {
+                    visitor.accept(applyMismatch(dictEntry, mm1, mm2));
+                }
+            }
+        }
+    }
+}
+
+/**
+ * MatchClassifier decides in closed form whether a dictionary based encoding can turn a dictionary entry
+ *  into a given word. Every such encoding only cares about diff = word ^ entry, so instead of trying every
+ *  mask / location combination we read the answer straight off the bit count and the span of the set bits.
+ *  Each method picks exactly the fields the original exhaustive searches would have hit first, so
+ *  compressed output is unchanged.
+ */
+final class MatchClassifier {
+
+    static final int NO_MATCH = -1;
+
+    private MatchClassifier() {}
+
+    /**
+     * Consecutive mismatch: diff must be a single run of numMismatches ones. The search only ever tried
+     *  starts below WORD_BITS - numMismatches, so a run touching the least significant bit never matched.
+     * @param diff
+     * @param numMismatches
+     * @param locations starts at or beyond this don't fit the location field
+     * @return mismatch start (counted from the most significant bit), or NO_MATCH
+     */
+    static int consecutiveMismatchStart(int diff, int numMismatches, int locations) {
+        if (Integer.bitCount(diff) != numMismatches) {
+            return NO_MATCH;
+        }
+        final int trailingZeros = Integer.numberOfTrailingZeros(diff);
+        if (trailingZeros == 0 || (diff >>> trailingZeros) != (1 << numMismatches) - 1) {
+            return NO_MATCH;
+        }
+        final int start = Formatter.WORD_BITS - numMismatches - trailingZeros;
+        return start < locations ? start : NO_MATCH;
+    }
+
+    /**
+     * Bitmask: diff must fit inside a bitmaskSize wide window. The search went from the largest bitmask down,
+     *  so the winner is the placement with the smallest shift, i.e. the mask's leftmost bit on diff's
+     *  leftmost bit (or as far left as the last location allows).
+     * @param diff
+     * @param bitmaskSize
+     * @param locations number of mask locations, from 0 (most significant) up
+     * @return location and bitmask packed as (location << bitmaskSize) | bitmask, or NO_MATCH
+     */
+    static int bitmaskPlacement(int diff, int bitmaskSize, int locations) {
+        if (diff == 0) {
+            return NO_MATCH;
+        }
+        final int highestBit = Formatter.WORD_BITS - 1 - Integer.numberOfLeadingZeros(diff);
+        // locations run from 0 to locations - 1 (at most WORD_BITS - bitmaskSize - 1), so the mask is always
+        //  shifted by at least WORD_BITS - bitmaskSize - (locations - 1), which is one by default
+        final int shift = Math.max(Formatter.WORD_BITS - bitmaskSize - (locations - 1), highestBit - (bitmaskSize - 1));
+        if (shift > Integer.numberOfTrailingZeros(diff)) {
+            return NO_MATCH;
+        }
+        final int location = Formatter.WORD_BITS - bitmaskSize - shift;
+        return (location << bitmaskSize) | (diff >>> shift);
+    }
+
+    /**
+     * Two bit anywhere mismatch: diff must have exactly two bits set. The search walked mm1 then mm2 upwards,
+     *  so mm1 is always the more significant of the two.
+     * @param diff
+     * @param locBits
+     * @param locations positions at or beyond this don't fit the location fields
+     * @return mismatch locations packed as (mm1 << locBits) | mm2, or NO_MATCH
+     */
+    static int twoBitMismatch(int diff, int locBits, int locations) {
+        if (Integer.bitCount(diff) != 2) {
+            return NO_MATCH;
+        }
+        final int mm1 = Integer.numberOfLeadingZeros(diff);
+        final int mm2 = Formatter.WORD_BITS - 1 - Integer.numberOfTrailingZeros(diff);
+        if (mm2 >= locations) {
+            return NO_MATCH;
+        }
+        return (mm1 << locBits) | mm2;
+    }
+}
+
+/**
+ * A DecisionSource answers, for the line being compressed, which of the DictionaryStrategies it covers wins.
+ *  runCompression skips covered strategies and asks the source instead.
+ */
+interface DecisionSource {
+    /**
+     * @param strategy
+     * @return whether decide() already accounts for this strategy
+     */
+    boolean covers(CompressionStrategy strategy);
+
+    /**
+     * @param input
+     * @param line
+     * @return the packed EncodingDecision of the winning covered strategy, or EncodingDecision.NONE
+     */
+    long decide(CompressionInput input, int line);
+}
+
+/**
+ * EncodingDecision packs the (format, payload) picked for a word into a single long, so decisions can be
+ *  stored in primitive tables.
+ */
+final class EncodingDecision {
+
+    static final long NONE = -1L;
+
+    private EncodingDecision() {}
+
+    static long pack(int format, int payload) {
+        return ((long) format << Integer.SIZE) | (payload & 0xFFFFFFFFL);
+    }
+
+    static int formatOf(long decision) {
+        return (int) (decision >>> Integer.SIZE);
+    }
+
+    static int payloadOf(long decision) {
+        return (int) decision;
+    }
+
+    static boolean isDictionaryStrategy(CompressionStrategy strategy) {
+        return strategy instanceof DictionaryStrategy;
+    }
+}
+
+/**
+ * StrategySchedule picks the encoding of a line by trying strategies from the cheapest encoding to the most
+ *  expensive. Encoding lengths are fixed, so once a strategy matches, anything costing more (or the same, with
+ *  a higher format) can't win and is never run: the choice is the same as running every strategy with ties
+ *  going to the lower format, but expensive searches like TwoBitAnywhereMismatchStrategy, and the catch-all
+ *  OriginalBinaryEncodingStrategy, only run when nothing cheaper applies. A DecisionSource takes the place of
+ *  the strategies it covers, ranked as the cheapest of them. Strategies that keep state run on every line.
+ *  The schedule holds on to its last choice and RLE's RunLengthState, so each run needs its own, while the
+ *  strategies themselves can be shared. Given CodecMetrics, it times and
+ *  counts every strategy call.
+ */
+final class StrategySchedule {
+
+    // marks the decision source's place in the probe order
+    private static final int DECISIONS = -1;
+
+    private final List<CompressionStrategy> strategies;
+    private final DecisionSource decisions;
+    private final CodecMetrics metrics;
+    // formats of the strategies that keep state
+    private final int[] alwaysRun;
+    // formats (or DECISIONS) in probe order, with the encoding length and format each one is ranked by
+    private final int[] order;
+    private final int[] orderBits;
+    private final int[] orderFormats;
+
+    // what RLE remembers between instructions, which belongs to this run rather than to the shared strategy
+    private final RunLengthState runs = new RunLengthState();
+
+    private int format;
+    private int bitsUsed;
+    private int payload;
+    private int linesConsumed;
+
+    /**
+     * @param decisions answers for the strategies it covers, or null to run every strategy directly
+     * @param include which strategies to choose between
+     */
+    StrategySchedule(List<CompressionStrategy> strategies, DecisionSource decisions, Predicate<CompressionStrategy> include) {
+        this(strategies, decisions, include, null);
+    }
+
+    /**
+     * @param metrics where to record every strategy call, or null
+     */
+    StrategySchedule(List<CompressionStrategy> strategies, DecisionSource decisions, Predicate<CompressionStrategy> include, CodecMetrics metrics) {
+        this.strategies = strategies;
+        this.decisions = decisions;
+        this.metrics = metrics;
+        IntList stateful = new IntList();
+        // {encoding length, format, probe}
+        List<int[]> ranked = new ArrayList<>();
+        int decisionBits = Integer.MAX_VALUE;
+        int decisionFormat = -1;
+        for (int format = 0; format != strategies.size(); ++format) {
+            CompressionStrategy strategy = strategies.get(format);
+            if (!include.test(strategy)) {
+                continue;
+            }
+            if (decisions != null && decisions.covers(strategy)) {
+                if (strategy.getEncodingLength() < decisionBits) {
+                    decisionBits = strategy.getEncodingLength();
+                    decisionFormat = format;
+                }
+            } else if (strategy.keepsState()) {
+                stateful.add(format);
+            } else {
+                ranked.add(new int[] {strategy.getEncodingLength(), format, format});
+            }
+        }
+        if (decisionFormat != -1) {
+            ranked.add(new int[] {decisionBits, decisionFormat, DECISIONS});
+        }
+        ranked.sort(Comparator.<int[]>comparingInt(entry -> entry[0]).thenComparingInt(entry -> entry[1]));
+        alwaysRun = stateful.toArray();
+        order = new int[ranked.size()];
+        orderBits = new int[ranked.size()];
+        orderFormats = new int[ranked.size()];
+        for (int i = 0; i != ranked.size(); ++i) {
+            orderBits[i] = ranked.get(i)[0];
+            orderFormats[i] = ranked.get(i)[1];
+            order[i] = ranked.get(i)[2];
+        }
+    }
+
+    /**
+     * Picks the encoding of line, which format(), bitsUsed(), payload() and linesConsumed() then describe.
+     * @param blockStart whether line starts a block, where RLE can't be used
+     * @return false if no strategy could encode line
+     */
+    boolean choose(Dictionary dict, CompressionInput input, int line, boolean blockStart) {
+        format = -1;
+        bitsUsed = Integer.MAX_VALUE;
+        for (int stateful : alwaysRun) {
+            if (blockStart && strategies.get(stateful) instanceof RunLengthEncodingStrategy) {
+                runs.reset();
+                continue;
+            }
+            offer(stateful, compress(stateful, dict, input, line));
+        }
+        for (int i = 0; i != order.length; ++i) {
+            // everything from here on costs at least as much, so nothing left can win
+            if (orderBits[i] > bitsUsed || (orderBits[i] == bitsUsed && orderFormats[i] > format)) {
+                break;
+            }
+            if (order[i] == DECISIONS) {
+                long decision = decide(input, line);
+                if (decision != EncodingDecision.NONE) {
+                    offer(EncodingDecision.formatOf(decision), EncodingDecision.payloadOf(decision), 1);
+                }
+            } else {
+                offer(order[i], compress(order[i], dict, input, line));
+            }
+        }
+        return format != -1;
+    }
+
+    /**
+     * choose() without blocks, packed as an EncodingDecision.
+     * @return the packed decision, or EncodingDecision.NONE if no strategy applies
+     */
+    long decide(Dictionary dict, CompressionInput input, int line) {
+        return choose(dict, input, line, false) ? EncodingDecision.pack(format, payload) : EncodingDecision.NONE;
+    }
+
+    /**
+     * Carries on after lines encoded earlier, by another run, the last of them being word.
+     * @param inRun whether RLE matched the start of the instruction word was last in, see StreamEnd.endsInRun
+     */
+    void resumeAfter(int word, boolean inRun) {
+        runs.resumeAfter(word, inRun);
+    }
+
+    private CompressionResult compress(int format, Dictionary dict, CompressionInput input, int line) {
+        if (metrics == null) {
+            return compress(strategies.get(format), dict, input, line);
+        }
+        final long start = System.nanoTime();
+        CompressionResult result = compress(strategies.get(format), dict, input, line);
+        metrics.attempted(format, result != null, System.nanoTime() - start);
+        return result;
+    }
+
+    private CompressionResult compress(CompressionStrategy strategy, Dictionary dict, CompressionInput input, int line) {
+        return strategy instanceof RunLengthEncodingStrategy
+                ? ((RunLengthEncodingStrategy) strategy).compress(dict, input, line, runs)
+                : strategy.compress(dict, input, line);
+    }
+
+    private long decide(CompressionInput input, int line) {
+        if (metrics == null) {
+            return decisions.decide(input, line);
+        }
+        final long start = System.nanoTime();
+        long decision = decisions.decide(input, line);
+        metrics.probedDecisions(System.nanoTime() - start);
+        return decision;
+    }
+
+    private void offer(int format, CompressionResult result) {
+        if (result != null) {
+            offer(format, result.getCompressedLine(), result.getLinesConsumed());
+        }
+    }
+
+    private void offer(int format, int payload, int linesConsumed) {
+        final int bits = strategies.get(format).getEncodingLength();
+        // ties go to the lower format
+        if (bits < bitsUsed || (bits == bitsUsed && format < this.format)) {
+            this.format = format;
+            this.bitsUsed = bits;
+            this.payload = payload;
+            this.linesConsumed = linesConsumed;
+        }
+    }
+
+    int format() {
+        return format;
+    }
+
+    int bitsUsed() {
+        return bitsUsed;
+    }
+
+    int payload() {
+        return payload;
+    }
+
+    int linesConsumed() {
+        return linesConsumed;
+    }
+}
+
+/**
+ * OptimalParse picks the sequence of encodings with the fewest total bits, instead of the cheapest encoding
+ *  at each line. Only RLE makes the order of choices matter: it covers up to maxLines() lines and may not
+ *  follow another RLE, so greedily taking the longest run can cost bits later on. A backward pass works out,
+ *  for every line and for whether the instruction before it was RLE, the cheapest way to encode the rest of
+ *  the input, then a forward pass emits it. Both passes are linear in the number of lines, and the output is
+ *  an ordinary stream.
+ */
+final class OptimalParse {
+
+    private OptimalParse() {}
+
+    /**
+     * @param decisions answers for the strategies it covers, or null to run the strategies directly
+     * @param metrics if not null, every strategy call is timed and counted here
+     */
+    static void encode(CompressionInput input, Dictionary dict, List<CompressionStrategy> strategies, DecisionSource decisions, CompressionOutput output, int formatBits, CodecMetrics metrics) {
+        // RLE is weighed up separately below
+        StrategySchedule schedule = new StrategySchedule(strategies, decisions, strategy -> !(strategy instanceof RunLengthEncodingStrategy), metrics);
+        int runFormat = -1;
+        for (int format = 0; format != strategies.size(); ++format) {
+            if (strategies.get(format) instanceof RunLengthEncodingStrategy) {
+                runFormat = format;
+            }
+        }
+        final int runBits = runFormat == -1 ? 0 : formatBits + strategies.get(runFormat).getEncodingLength();
+        final int maxRun = runFormat == -1 ? 0 : ((RunLengthEncodingStrategy) strategies.get(runFormat)).maxLines();
+
+        final int size = input.size();
+        // cheapest single line encoding of every line
+        final long[] single = new long[size];
+        // how many lines from here on repeat this one, capped at maxRun
+        final byte[] run = new byte[size];
+        for (int line = size - 1; line >= 0; --line) {
+            single[line] = bestSingleLine(input, line, dict, schedule);
+            final boolean repeats = line + 1 < size && input.getWord(line + 1) == input.getWord(line);
+            run[line] = (byte) (repeats ? Math.min(run[line + 1] + 1, maxRun) : 1);
+        }
+
+        // bits needed for lines [line, size) when the instruction before line was not / was RLE
+        final long[] afterPlain = new long[size + 1];
+        final long[] afterRun = new long[size + 1];
+        // lines the cheapest RLE at line covers (when allowed), or 0 when a single line encoding is cheaper
+        final byte[] runChoice = new byte[size];
+        for (int line = size - 1; line >= 0; --line) {
+            final long plain = singleBits(single[line], strategies, formatBits) + afterPlain[line + 1];
+            long best = plain;
+            if (runFormat != -1 && line > 0 && input.getWord(line) == input.getWord(line - 1)) {
+                for (int lines = 1; lines <= run[line]; ++lines) {
+                    final long bits = runBits + afterRun[line + lines];
+                    // ties go to the longer run, which means fewer instructions
+                    if (bits <= best) {
+                        best = bits;
+                        runChoice[line] = (byte) lines;
+                    }
+                }
+            }
+            afterPlain[line] = best;
+            afterRun[line] = plain;
+        }
+
+        boolean afterRunInstruction = false;
+        int line = 0;
+        while (line != size) {
+            final int lines = afterRunInstruction ? 0 : runChoice[line];
+            if (lines != 0) {
+                RunLengthEncodingStrategy strategy = (RunLengthEncodingStrategy) strategies.get(runFormat);
+                output.add(runFormat, lines - 1, strategy.getEncodingLength());
+                line += lines;
+                afterRunInstruction = true;
+            } else {
+                final int format = EncodingDecision.formatOf(single[line]);
+                output.add(format, EncodingDecision.payloadOf(single[line]), strategies.get(format).getEncodingLength());
+                ++line;
+                afterRunInstruction = false;
+            }
+        }
+    }
+
+    private static long singleBits(long decision, List<CompressionStrategy> strategies, int formatBits) {
+        return formatBits + strategies.get(EncodingDecision.formatOf(decision)).getEncodingLength();
+    }
+
+    /**
+     * The cheapest encoding of line on its own (anything but RLE), with ties going to the lower format.
+     */
+    private static long bestSingleLine(CompressionInput input, int line, Dictionary dict, StrategySchedule schedule) {
+        long best = schedule.decide(dict, input, line);
+        if (best == EncodingDecision.NONE) {
+            throw new IllegalStateException("no strategy can encode line " + line + " on its own");
+        }
+        return best;
+    }
+}
+
+/**
+ * StrategyDecisions simply runs the DictionaryStrategies every time, cheapest first. Its StrategySchedule
+ *  remembers the last choice, so each thread needs its own.
+ */
+class StrategyDecisions implements DecisionSource {
+
+    private final Dictionary dict;
+    private final StrategySchedule schedule;
+
+    StrategyDecisions(Dictionary dict, List<CompressionStrategy> strategies) {
+        this.dict = dict;
+        this.schedule = new StrategySchedule(strategies, null, EncodingDecision::isDictionaryStrategy);
+    }
+
+    @Override
+    public boolean covers(CompressionStrategy strategy) {
+        return EncodingDecision.isDictionaryStrategy(strategy);
+    }
+
+    @Override
+    public long decide(CompressionInput input, int line) {
+        return schedule.decide(dict, input, line);
+    }
+}
+
+/**
+ * PrecomputedDecisions holds the dictionary strategy decision for every line of an input, worked out chunk
+ *  by chunk on a ForkJoinPool. Dictionary decisions never depend on neighbouring lines, so chunks need no
+ *  fix-up at their edges; everything position dependent (RLE) is left to the sequential loop.
+ */
+class PrecomputedDecisions implements DecisionSource {
+
+    private final long[] decisions;
+
+    private PrecomputedDecisions(long[] decisions) {
+        this.decisions = decisions;
+    }
+
+    /**
+     * @param input
+     * @param sources gives each chunk its own DecisionSource, so non thread safe sources (caches) work too
+     * @param pool
+     * @param chunkLines
+     * @return decisions for every line of input
+     */
+    static PrecomputedDecisions compute(CompressionInput input, Supplier<DecisionSource> sources, ForkJoinPool pool, int chunkLines) {
+        final long[] decisions = new long[input.size()];
+        List<Callable<Void>> chunks = new ArrayList<>();
+        for (int chunkStart = 0; chunkStart < input.size(); chunkStart += chunkLines) {
+            final int start = chunkStart;
+            final int end = Math.min(input.size(), chunkStart + chunkLines);
+            chunks.add(() -> {
+                DecisionSource source = sources.get();
+                for (int line = start; line != end; ++line) {
+                    decisions[line] = source.decide(input, line);
+                }
+                return null;
+            });
+        }
+        for (Future<Void> chunk : pool.invokeAll(chunks)) {
+            try {
+                chunk.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while compressing", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("parallel compression failed", e.getCause());
+            }
+        }
+        return new PrecomputedDecisions(decisions);
+    }
+
+    @Override
+    public boolean covers(CompressionStrategy strategy) {
+        return EncodingDecision.isDictionaryStrategy(strategy);
+    }
+
+    @Override
+    public long decide(CompressionInput input, int line) {
+        return decisions[line];
+    }
+}
+
+/**
+ * NeighborhoodIndex precomputes, for every word reachable from the dictionary by a DictionaryStrategy,
+ *  the encoding runCompression would pick among those strategies. Compressing such a word then costs one
+ *  hash probe instead of a call into every strategy. Words outside the neighborhood are simply not found.
+ */
+class NeighborhoodIndex implements DecisionSource {
+
+    private final IntLongHashMap entries;
+
+    NeighborhoodIndex(Dictionary dict, List<CompressionStrategy> strategies) {
+        // ~1000 neighbours per dictionary entry with the default strategies
+        entries = new IntLongHashMap(dict.size() * 1024);
+
+        // first pass: collect every reachable word
+        for (CompressionStrategy strategy : strategies) {
+            if (covers(strategy)) {
+                ((DictionaryStrategy) strategy).forEachEncodable(dict, word -> entries.putIfAbsent(word, EncodingDecision.NONE));
+            }
+        }
+
+        // second pass: let the strategies themselves pick the encoding, so the index can never disagree with them
+        int[] probe = new int[1];
+        CompressionInput probeInput = new CompressionInput(probe);
+        StrategySchedule schedule = new StrategySchedule(strategies, null, EncodingDecision::isDictionaryStrategy);
+        entries.forEachKey(word -> {
+            probe[0] = word;
+            entries.put(word, schedule.decide(dict, probeInput, 0));
+        });
+    }
+
+    @Override
+    public boolean covers(CompressionStrategy strategy) {
+        return EncodingDecision.isDictionaryStrategy(strategy);
+    }
+
+    @Override
+    public long decide(CompressionInput input, int line) {
+        return lookup(input.getWord(line));
+    }
+
+    /**
+     * @param word
+     * @return the packed EncodingDecision for word, or EncodingDecision.NONE
+     */
+    long lookup(int word) {
+        return entries.get(word);
+    }
+
+    int size() {
+        return entries.size();
+    }
+}
+
+/**
+ * DecisionCache remembers the dictionary strategy decision for recently seen words. It is direct mapped:
+ *  each word has exactly one slot, and a different word landing there evicts it. That keeps memory fixed
+ *  at maxEntries no matter how many distinct words the input has.
+ */
+class DecisionCache implements DecisionSource {
+
+    private final Dictionary dict;
+    private final StrategySchedule schedule;
+
+    private final int[] words;
+    private final long[] decisions;
+    private final boolean[] filled;
+    private final int shift;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    DecisionCache(Dictionary dict, List<CompressionStrategy> strategies, int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("decision cache needs at least one entry");
+        }
+        this.dict = dict;
+        this.schedule = new StrategySchedule(strategies, null, EncodingDecision::isDictionaryStrategy);
+        // round down to a power of two so the slot is just the top bits of the hash
+        int capacity = Math.max(2, Integer.highestOneBit(maxEntries));
+        words = new int[capacity];
+        decisions = new long[capacity];
+        filled = new boolean[capacity];
+        shift = Integer.numberOfLeadingZeros(capacity) + 1;
+    }
+
+    @Override
+    public boolean covers(CompressionStrategy strategy) {
+        return EncodingDecision.isDictionaryStrategy(strategy);
+    }
+
+    @Override
+    public long decide(CompressionInput input, int line) {
+        final int word = input.getWord(line);
+        // fibonacci hashing spreads the low-entropy low bits of instruction words across the table
+        final int slot = (word * 0x9E3779B9) >>> shift;
+        if (filled[slot] && words[slot] == word) {
+            ++hits;
+            return decisions[slot];
+        }
+        ++misses;
+        if (filled[slot]) {
+            ++evictions;
+        }
+        long decision = schedule.decide(dict, input, line);
+        words[slot] = word;
+        decisions[slot] = decision;
+        filled[slot] = true;
+        return decision;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public String toString() {
+        return "DecisionCache{capacity=" + words.length + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "}";
+    }
+}
+
+/* ======= Helper Types ======= */
+
+class Dictionary {
+    private final int NUM_BITS;
+    private final int[] instructions;
+    // word -> index of its first entry, so indexOf doesn't depend on the dictionary size
+    private final IntLongHashMap indexes;
+    // the id of the shared dictionary this is, see DictionaryStore, or null
+    private final String sharedId;
+
+    // inputs are counted in chunks of this many lines when a pool is available
+    private static final int COUNT_CHUNK_LINES = 1 << 16;
+
+    /**
+     * Constructor for when decompressing an already existing dictionary
+     * @param input
+     * @param numBits
+     */
+    public Dictionary(DecompressionInput input, int numBits) {
+        this(rawDictOf(input), numBits);
+    }
+
+    /**
+     * Constructor for when the dictionary entries are already known
+     * @param entries
+     * @param numBits
+     */
+    public Dictionary(int[] entries, int numBits) {
+        this(entries, numBits, null);
+    }
+
+    /**
+     * Constructor for a shared dictionary, which compressed files name by sharedId instead of storing
+     * @param entries
+     * @param numBits
+     * @param sharedId may be null for an ordinary dictionary
+     */
+    public Dictionary(int[] entries, int numBits, String sharedId) {
+        NUM_BITS = numBits;
+        if (entries.length > (int) Math.pow(2, NUM_BITS)) {
+            throw new IllegalArgumentException("invalid dict size");
+        }
+        instructions = entries.clone();
+        indexes = indexesOf(instructions);
+        this.sharedId = sharedId;
+    }
+
+    private static IntLongHashMap indexesOf(int[] entries) {
+        IntLongHashMap indexes = new IntLongHashMap(entries.length);
+        for (int i = 0; i != entries.length; ++i) {
+            indexes.putIfAbsent(entries[i], i);
+        }
+        return indexes;
+    }
+
+    private static int[] rawDictOf(DecompressionInput input) {
+        int[] entries = new int[input.rawDictSize()];
+        for (int i = 0; i!=entries.length; ++i) {
+            entries[i] = input.getRawDict(i);
+        }
+        return entries;
+    }
+
+    /**
+     * Constructor for when compressing an input file
+     * @param input
+     * @param dictionarySize
+     */
+    public Dictionary(CompressionInput input, int numBits, int dictionarySize) {
+        this(input, numBits, dictionarySize, null);
+    }
+
+    /**
+     * Constructor for when compressing an input file, counting the input in parallel on the given pool
+     * @param input
+     * @param dictionarySize
+     * @param pool may be null to count on the calling thread
+     */
+    public Dictionary(CompressionInput input, int numBits, int dictionarySize, ForkJoinPool pool) {
+        this(countInput(input, pool), numBits, dictionarySize);
+    }
+
+    /**
+     * Constructor for when the input has already been counted
+     * @param counts
+     * @param dictionarySize
+     */
+    public Dictionary(WordCounts counts, int numBits, int dictionarySize) {
+        NUM_BITS = numBits;
+        if (dictionarySize < 0 || dictionarySize > (int) Math.pow(2, NUM_BITS)) {
+            throw new IllegalArgumentException("invalid dict size");
+        }
+        instructions = selectTop(counts, dictionarySize);
+        indexes = indexesOf(instructions);
+        sharedId = null;
+    }
+
+    /**
+     * Counts every word of input, spread over pool when there is one and the input is big enough.
+     * @param input
+     * @param pool may be null to count on the calling thread
+     * @return
+     */
+    static WordCounts countInput(CompressionInput input, ForkJoinPool pool) {
+        if (pool == null || input.size() <= COUNT_CHUNK_LINES) {
+            return countRange(input, 0, input.size());
+        }
+        // every chunk gets its own map, then they are all folded into the first one
+        List<Callable<WordCounts>> chunks = new ArrayList<>();
+        for (int chunkStart = 0; chunkStart < input.size(); chunkStart += COUNT_CHUNK_LINES) {
+            final int start = chunkStart;
+            final int end = Math.min(input.size(), chunkStart + COUNT_CHUNK_LINES);
+            chunks.add(() -> countRange(input, start, end));
+        }
+        WordCounts total = null;
+        for (Future<WordCounts> chunk : pool.invokeAll(chunks)) {
+            try {
+                if (total == null) {
+                    total = chunk.get();
+                } else {
+                    total.addAll(chunk.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while building dictionary", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("parallel dictionary count failed", e.getCause());
+            }
+        }
+        return total;
+    }
+
+    private static WordCounts countRange(CompressionInput input, int start, int end) {
+        WordCounts counts = new WordCounts(Math.min(end - start, COUNT_CHUNK_LINES));
+        for (int i = start; i != end; ++i) {
+            counts.add(input.getWord(i), i);
+        }
+        return counts;
+    }
+
+    /**
+     * Picks the size most frequent words, ties going to whichever word showed up first. Only a size-bounded
+     *  min-heap is kept, so this is linear in the number of distinct words rather than a full sort.
+     * @param counts
+     * @param size
+     * @return the chosen words, most frequent first
+     */
+    static int[] selectTop(WordCounts counts, int size) {
+        final int heapSize = Math.min(size, counts.size());
+        // rank packs the count above the (inverted) first occurrence, so a larger rank is always a better word
+        final long[] ranks = new long[heapSize];
+        final int[] words = new int[heapSize];
+        final int[] filled = {0};
+        counts.forEach((word, count, firstSeen) -> {
+            long rank = ((long) count << Integer.SIZE) | (Integer.MAX_VALUE - firstSeen);
+            if (filled[0] < heapSize) {
+                // still filling up, sift the new word up into place
+                int i = filled[0]++;
+                while (i > 0 && ranks[(i - 1) / 2] > rank) {
+                    ranks[i] = ranks[(i - 1) / 2];
+                    words[i] = words[(i - 1) / 2];
+                    i = (i - 1) / 2;
+                }
+                ranks[i] = rank;
+                words[i] = word;
+            } else if (heapSize > 0 && rank > ranks[0]) {
+                // beats the worst word we're holding on to, so replace it and sift down
+                int i = 0;
+                while (true) {
+                    int child = 2 * i + 1;
+                    if (child >= heapSize) {
+                        break;
+                    }
+                    if (child + 1 < heapSize && ranks[child + 1] < ranks[child]) {
+                        ++child;
+                    }
+                    if (ranks[child] >= rank) {
+                        break;
+                    }
+                    ranks[i] = ranks[child];
+                    words[i] = words[child];
+                    i = child;
+                }
+                ranks[i] = rank;
+                words[i] = word;
+            }
+        });
+        // pop the heap from worst to best, filling the result from the back
+        int[] instructions = new int[heapSize];
+        for (int remaining = heapSize; remaining != 0; --remaining) {
+            instructions[remaining - 1] = words[0];
+            long lastRank = ranks[remaining - 1];
+            int lastWord = words[remaining - 1];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= remaining - 1) {
+                    break;
+                }
+                if (child + 1 < remaining - 1 && ranks[child + 1] < ranks[child]) {
+                    ++child;
+                }
+                if (ranks[child] >= lastRank) {
+                    break;
+                }
+                ranks[i] = ranks[child];
+                words[i] = words[child];
+                i = child;
+            }
+            ranks[i] = lastRank;
+            words[i] = lastWord;
+        }
+        return instructions;
+    }
+
+    public int size() {
+        return instructions.length;
+    }
+
+    /**
+     * Get returns the specified instruction index.
+     * @param instruction
+     * @return index, or -1 if DNE
+     */
+    public int indexOf(int instruction) {
+        return (int) indexes.get(instruction);
+    }
+
+    public int get(int i) {
+        return instructions[i];
+    }
+
+    public int getFromBinaryString(String binaryString) {
+        if (binaryString.length() != NUM_BITS) {
+            throw new IllegalArgumentException("binaryString is of incorrect size");
+        }
+        int index = Integer.parseInt(binaryString, 2);
+        return get(index);
+    }
+
+    /**
+     * @return the id of the shared dictionary this is, or null if it is stored with the compressed file
+     */
+    public String sharedId() {
+        return sharedId;
+    }
+
+    @Override
+    public String toString() {
+        if (sharedId != null) {
+            return DictionaryStore.REFERENCE + sharedId;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i!=size(); ++i) {
+            if (i > 0) {
+                sb.append("\n");
+            }
+            sb.append(Formatter.genWordString(instructions[i]));
+        }
+        return sb.toString();
+    }
+}
+
+/**
+ * DictionaryStore keeps dictionaries trained once from a corpus, so that files compressed with one only have
+ *  to name it instead of carrying their own. Each is a text file named after its id, with VERSION on the first
+ *  line and then one entry per line. The id is the start of the SHA-256 of the entries, so a dictionary can
+ *  never change under its id. Compressed text names one with a REFERENCE line where its dictionary would be;
+ *  binary files set BinaryFormat.FLAG_SHARED_DICTIONARY and store the id instead.
+ *
+ *  Dictionaries are kept in memory once loaded, for the life of the JVM, so the service reads each one once.
+ */
+final class DictionaryStore {
+    static final String VERSION = "sim-dictionary 1";
+    static final String REFERENCE = "shared ";
+    private static final String EXTENSION = ".dict";
+    // 16 hex digits, so the binary format can keep an id in a long
+    private static final int ID_DIGITS = 16;
+
+    private static final Map<Path, int[]> LOADED = new ConcurrentHashMap<>();
+
+    private final Path dir;
+
+    DictionaryStore(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Writes dict to the store, unless it is already there.
+     * @return its id
+     */
+    String save(Dictionary dict) throws IOException {
+        int[] entries = new int[dict.size()];
+        List<String> lines = new ArrayList<>();
+        lines.add(VERSION);
+        for (int i = 0; i != entries.length; ++i) {
+            entries[i] = dict.get(i);
+            lines.add(Formatter.genWordString(entries[i]));
+        }
+        final String id = idOf(entries);
+        Path path = dir.resolve(id + EXTENSION);
+        if (!Files.exists(path)) {
+            Files.createDirectories(dir);
+            // written aside and moved in, so a reader never sees half a dictionary
+            Path partial = Files.createTempFile(dir, id, EXTENSION);
+            Files.write(partial, lines, StandardCharsets.US_ASCII);
+            Files.move(partial, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return id;
+    }
+
+    /**
+     * @return the dictionary with this id, for compressing or decompressing with layout
+     * @throws IllegalArgumentException if the store doesn't have it, or it has more entries than layout allows
+     * @throws IllegalStateException if the stored entries don't match the id
+     */
+    Dictionary load(String id, CodecLayout layout) throws IOException {
+        checkId(id);
+        Path path = dir.resolve(id + EXTENSION).toAbsolutePath().normalize();
+        int[] entries = LOADED.get(path);
+        if (entries == null) {
+            entries = read(path, id);
+            LOADED.put(path, entries);
+        }
+        if (entries.length > layout.dictionarySize()) {
+            throw new IllegalArgumentException("shared dictionary " + id + " has " + entries.length + " entries, more than the dictionary size of " + layout.dictionarySize() + ".");
+        }
+        return new Dictionary(entries, layout.dictionaryIndexBits(), id);
+    }
+
+    private static int[] read(Path path, String id) throws IOException {
+        final List<String> lines;
+        try {
+            lines = Files.readAllLines(path, StandardCharsets.US_ASCII);
+        } catch (NoSuchFileException e) {
+            throw new IllegalArgumentException("no shared dictionary " + id + " in '" + path.getParent() + "'.");
+        }
+        if (lines.isEmpty() || !lines.get(0).equals(VERSION)) {
+            throw new IllegalStateException("'" + path + "' is not a " + VERSION + " file");
+        }
+        int[] entries = new int[lines.size() - 1];
+        for (int i = 0; i != entries.length; ++i) {
+            entries[i] = Formatter.parseBinaryString(lines.get(i + 1));
+        }
+        if (!idOf(entries).equals(id)) {
+            throw new IllegalStateException("'" + path + "' doesn't hold dictionary " + id + ", it is corrupt or was renamed");
+        }
+        return entries;
+    }
+
+    /**
+     * @throws IllegalArgumentException if id can't be a dictionary id
+     */
+    static void checkId(String id) {
+        if (id.length() != ID_DIGITS || !id.chars().allMatch(c -> Character.digit(c, 16) != -1 && !Character.isUpperCase(c))) {
+            throw new IllegalArgumentException("a shared dictionary id is " + ID_DIGITS + " lower case hex digits, got '" + id + "'.");
+        }
+    }
+
+    static String idOf(int[] entries) {
+        final MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has to provide it
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(entries.length * Integer.BYTES);
+        bytes.asIntBuffer().put(entries);
+        return idOf(ByteBuffer.wrap(sha256.digest(bytes.array())).getLong());
+    }
+
+    static String idOf(long bits) {
+        return String.format("%016x", bits);
+    }
+
+    static long idBits(String id) {
+        return Long.parseUnsignedLong(id, 16);
+    }
+
+    /**
+     * @param section the lines of a text dictionary section
+     * @return the shared dictionary the section names, or null if it holds the entries itself
+     */
+    static String referenceIn(List<String> section) {
+        return section.size() == 1 && section.get(0).startsWith(REFERENCE) ? section.get(0).substring(REFERENCE.length()) : null;
+    }
+
+    /**
+     * @param section the lines of a text dictionary section
+     * @return the entries in it, none if it names a shared dictionary
+     */
+    static int[] entriesIn(List<String> section) {
+        if (referenceIn(section) != null) {
+            return new int[0];
+        }
+        int[] entries = new int[section.size()];
+        for (int i = 0; i != entries.length; ++i) {
+            entries[i] = Formatter.parseBinaryString(section.get(i));
+        }
+        return entries;
+    }
+}
+
+/**
+ * CoverageSelection picks dictionary entries by the bits they save over the whole input, not by their own
+ *  frequency alone. A candidate's neighborhood is every word some DictionaryStrategy can encode from it. Every
+ *  word starts out costing its cheapest encoding without the dictionary, and entries are then chosen greedily
+ *  (weighted set cover): each round takes the candidate whose neighborhood would save the most bits given the
+ *  entries already chosen. Only the most frequent words are candidates, and neighborhoods are looked up in the
+ *  word counts instead of comparing against every distinct word, so the work doesn't grow with the number of
+ *  distinct words. RLE is left out of the costs.
+ */
+final class CoverageSelection {
+
+    private CoverageSelection() {}
+
+    /**
+     * @param counts
+     * @param size number of entries wanted
+     * @param candidateCount how many of the most frequent words to consider
+     * @param strategies
+     * @param numBits dictionary index bits
+     * @param formatBits
+     * @return the chosen entries, in the order they were chosen
+     */
+    static int[] select(WordCounts counts, int size, int candidateCount, List<CompressionStrategy> strategies, int numBits, int formatBits) {
+        final int[] candidates = Dictionary.selectTop(counts, Math.max(size, candidateCount));
+
+        // a word no entry covers costs its cheapest single line encoding that doesn't need the dictionary
+        int plainBits = Integer.MAX_VALUE;
+        List<CompressionStrategy> dictionaryStrategies = new ArrayList<>();
+        for (CompressionStrategy strategy : strategies) {
+            if (strategy instanceof DictionaryStrategy) {
+                dictionaryStrategies.add(strategy);
+            } else if (!(strategy instanceof RunLengthEncodingStrategy)) {
+                plainBits = Math.min(plainBits, formatBits + strategy.getEncodingLength());
+            }
+        }
+        // cheapest first, so the first time a candidate reaches a word is also its cheapest way there
+        dictionaryStrategies.sort(Comparator.comparingInt(CompressionStrategy::getEncodingLength));
+
+        // every word seen in a neighborhood gets a dense id, with its count as the weight
+        final IntLongHashMap ids = new IntLongHashMap(candidates.length * 64);
+        final IntList weights = new IntList();
+        final IntList[] neighborIds = new IntList[candidates.length];
+        final IntList[] neighborBits = new IntList[candidates.length];
+        for (int candidate = 0; candidate != candidates.length; ++candidate) {
+            final IntList nIds = neighborIds[candidate] = new IntList();
+            final IntList nBits = neighborBits[candidate] = new IntList();
+            final IntLongHashMap reached = new IntLongHashMap(64);
+            Dictionary single = new Dictionary(new int[]{candidates[candidate]}, numBits);
+            for (CompressionStrategy strategy : dictionaryStrategies) {
+                final int bits = formatBits + strategy.getEncodingLength();
+                ((DictionaryStrategy) strategy).forEachEncodable(single, word -> {
+                    final int count = counts.countOf(word);
+                    if (count == 0 || reached.get(word) != IntLongHashMap.NOT_FOUND) {
+                        return;
+                    }
+                    reached.put(word, 0);
+                    long id = ids.get(word);
+                    if (id == IntLongHashMap.NOT_FOUND) {
+                        id = weights.size();
+                        ids.put(word, id);
+                        weights.add(count);
+                    }
+                    nIds.add((int) id);
+                    nBits.add(bits);
+                });
+            }
+        }
+
+        final int[] cost = new int[weights.size()];
+        Arrays.fill(cost, plainBits);
+        final boolean[] chosen = new boolean[candidates.length];
+        final int[] entries = new int[Math.min(size, candidates.length)];
+        for (int entry = 0; entry != entries.length; ++entry) {
+            int best = -1;
+            long bestSaving = -1;
+            // candidates are most frequent first, so ties go to the more frequent word
+            for (int candidate = 0; candidate != candidates.length; ++candidate) {
+                if (chosen[candidate]) {
+                    continue;
+                }
+                final IntList nIds = neighborIds[candidate];
+                final IntList nBits = neighborBits[candidate];
+                long saving = 0;
+                for (int i = 0; i != nIds.size(); ++i) {
+                    final int id = nIds.get(i);
+                    saving += (long) weights.get(id) * Math.max(0, cost[id] - nBits.get(i));
+                }
+                if (saving > bestSaving) {
+                    best = candidate;
+                    bestSaving = saving;
+                }
+            }
+            chosen[best] = true;
+            entries[entry] = candidates[best];
+            final IntList nIds = neighborIds[best];
+            final IntList nBits = neighborBits[best];
+            for (int i = 0; i != nIds.size(); ++i) {
+                cost[nIds.get(i)] = Math.min(cost[nIds.get(i)], nBits.get(i));
+            }
+        }
+        return entries;
+    }
+}
+
+class Formatter {
+    // width of a single uncompressed instruction
+    public static final int WORD_BITS = Integer.SIZE;
+
+    /**
+     * Generates a binary string with the specified number of bits
+     * @param num
+     * @param numBits
+     * @return
+     */
+    public static String genBinaryString(int num, int numBits) {
+        String raw = Integer.toBinaryString(num);
+        if (raw.length() > numBits) {
+            throw new IllegalArgumentException("num greater than bits can hold");
+        } else if (raw.length() == numBits) {
+            return raw;
+        }
+        StringBuilder sb = new StringBuilder(numBits);
+        int zerosNeeded = numBits - raw.length();
+        for (int i=0; i!=zerosNeeded; ++i) {
+            sb.append("0");
+        }
+        sb.append(raw);
+        return sb.toString();
+    }
+
+    /**
+     * Writes the low numBits bits of num as '0'/'1' bytes, most significant first, without allocating.
+     * @param num
+     * @param numBits
+     * @param dest
+     * @param pos where the first byte goes
+     * @return the position after the last byte written
+     */
+    public static int writeBinary(int num, int numBits, byte[] dest, int pos) {
+        if (numBits < Integer.SIZE && (num >>> numBits) != 0) {
+            throw new IllegalArgumentException("num greater than bits can hold");
+        }
+        for (int bit = numBits - 1; bit >= 0; --bit) {
+            dest[pos++] = (byte) ('0' + ((num >>> bit) & 1));
+        }
+        return pos;
+    }
+
+    /**
+     * Generates the full WORD_BITS wide binary string of an instruction word
+     * @param word
+     * @return
+     */
+    public static String genWordString(int word) {
+        return genBinaryString(word, WORD_BITS);
+    }
+
+    /**
+     * Parses a binary string of up to WORD_BITS bits into an (unsigned) packed word
+     * @param binaryString
+     * @return
+     */
+    public static int parseBinaryString(String binaryString) {
+        return Integer.parseUnsignedInt(binaryString, 2);
+    }
+}
+
+/**
+ * IntList is a minimal growable list of primitive ints, so that hot paths don't box every word.
+ */
+class IntList {
+    private int[] values;
+    private int size = 0;
+
+    IntList() {
+        this(16);
+    }
+
+    IntList(int initialCapacity) {
+        values = new int[Math.max(1, initialCapacity)];
+    }
+
+    public void add(int value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, values.length * 2);
+        }
+        values[size++] = value;
+    }
+
+    public int get(int i) {
+        if (i >= size) {
+            throw new IndexOutOfBoundsException("index " + i + " out of bounds for size " + size);
+        }
+        return values[i];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+}
+
+/**
+ * LongList is IntList for longs.
+ */
+class LongList {
+    private long[] values;
+    private int size = 0;
+
+    LongList() {
+        this(16);
+    }
+
+    LongList(int initialCapacity) {
+        values = new long[Math.max(1, initialCapacity)];
+    }
+
+    public void add(long value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, values.length * 2);
+        }
+        values[size++] = value;
+    }
+
+    public long get(int i) {
+        if (i >= size) {
+            throw new IndexOutOfBoundsException("index " + i + " out of bounds for size " + size);
+        }
+        return values[i];
+    }
+
+    public int size() {
+        return size;
+    }
+}
+
+/**
+ * IntLongHashMap is a primitive open addressing (linear probing) map from int keys to non-negative long values.
+ */
+class IntLongHashMap {
+    static final long NOT_FOUND = -1L;
+
+    private static final int MAX_LOAD_PERCENT = 50;
+
+    private int[] keys;
+    private long[] values;
+    private boolean[] used;
+    private int shift;
+    private int size = 0;
+
+    IntLongHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * (100 / MAX_LOAD_PERCENT)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new long[capacity];
+        used = new boolean[capacity];
+        shift = Integer.numberOfLeadingZeros(capacity) + 1;
+    }
+
+    private int slotOf(int key) {
+        final int mask = keys.length - 1;
+        // fibonacci hashing spreads the low-entropy low bits of instruction words across the table
+        int slot = (key * 0x9E3779B9) >>> shift;
+        while (used[slot] && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    public long get(int key) {
+        int slot = slotOf(key);
+        return used[slot] ? values[slot] : NOT_FOUND;
+    }
+
+    public void put(int key, long value) {
+        int slot = slotOf(key);
+        if (!used[slot]) {
+            used[slot] = true;
+            keys[slot] = key;
+            if (++size * 100 > keys.length * MAX_LOAD_PERCENT) {
+                values[slot] = value;
+                rehash();
+                return;
+            }
+        }
+        values[slot] = value;
+    }
+
+    public void putIfAbsent(int key, long value) {
+        if (!used[slotOf(key)]) {
+            put(key, value);
+        }
+    }
+
+    private void rehash() {
+        int[] oldKeys = keys;
+        long[] oldValues = values;
+        boolean[] oldUsed = used;
+        allocate(keys.length * 2);
+        size = 0;
+        for (int i = 0; i != oldKeys.length; ++i) {
+            if (oldUsed[i]) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    public void forEachKey(IntConsumer visitor) {
+        for (int i = 0; i != keys.length; ++i) {
+            if (used[i]) {
+                visitor.accept(keys[i]);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+}
+
+/**
+ * WordCounts is a primitive open addressing map from a word to how often it occurs and the first line it
+ *  occurs on.
+ */
+class WordCounts {
+
+    interface Visitor {
+        void visit(int word, int count, int firstSeen);
+    }
+
+    private int[] words;
+    private int[] counts;
+    private int[] firstSeen;
+    private int shift;
+    private int size = 0;
+
+    WordCounts(int expectedSize) {
+        allocate(Integer.highestOneBit(Math.max(4, expectedSize * 2) - 1) << 1);
+    }
+
+    private void allocate(int capacity) {
+        words = new int[capacity];
+        counts = new int[capacity];
+        firstSeen = new int[capacity];
+        shift = Integer.numberOfLeadingZeros(capacity) + 1;
+    }
+
+    private int slotOf(int word) {
+        final int mask = words.length - 1;
+        int slot = (word * 0x9E3779B9) >>> shift;
+        // a count of zero marks an empty slot
+        while (counts[slot] != 0 && words[slot] != word) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Records count more occurrences of word, the earliest of which is on line firstLine.
+     */
+    private void add(int word, int count, int firstLine) {
+        int slot = slotOf(word);
+        if (counts[slot] == 0) {
+            words[slot] = word;
+            counts[slot] = count;
+            firstSeen[slot] = firstLine;
+            if (++size * 2 > words.length) {
+                rehash();
+            }
+        } else {
+            counts[slot] += count;
+            firstSeen[slot] = Math.min(firstSeen[slot], firstLine);
+        }
+    }
+
+    public void add(int word, int line) {
+        add(word, 1, line);
+    }
+
+    public void addAll(WordCounts other) {
+        other.forEach(this::add);
+    }
+
+    private void rehash() {
+        int[] oldWords = words;
+        int[] oldCounts = counts;
+        int[] oldFirstSeen = firstSeen;
+        allocate(words.length * 2);
+        size = 0;
+        for (int i = 0; i != oldWords.length; ++i) {
+            if (oldCounts[i] != 0) {
+                add(oldWords[i], oldCounts[i], oldFirstSeen[i]);
+            }
+        }
+    }
+
+    public void forEach(Visitor visitor) {
+        for (int i = 0; i != words.length; ++i) {
+            if (counts[i] != 0) {
+                visitor.visit(words[i], counts[i], firstSeen[i]);
+            }
+        }
+    }
+
+    /**
+     * @param word
+     * @return how often word occurs, 0 if never
+     */
+    public int countOf(int word) {
+        return counts[slotOf(word)];
+    }
+
+    public int size() {
+        return size;
+    }
+}
+
+/**
+ * RunOptions holds the optional flags that follow the compress/decompress argument.
+ *  Flags are written as --name or --name=value.
+ */
+class RunOptions {
+    static final RunOptions NONE = new RunOptions();
+
+    private final Map<String, String> flags = new HashMap<>();
+
+    private RunOptions() {}
+
+    RunOptions(String[] args, List<String> knownOptions) {
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("unrecognized argument '" + arg + "'.");
+            }
+            int eq = arg.indexOf('=');
+            String name = eq == -1 ? arg.substring(2) : arg.substring(2, eq);
+            String value = eq == -1 ? "" : arg.substring(eq + 1);
+            if (!knownOptions.contains(name)) {
+                throw new IllegalArgumentException("unrecognized option '" + arg + "'.");
+            }
+            flags.put(name, value);
+        }
+    }
+
+    public boolean has(String name) {
+        return flags.containsKey(name);
+    }
+
+    public String get(String name, String defaultValue) {
+        String value = flags.get(name);
+        return value == null || value.isEmpty() ? defaultValue : value;
+    }
+
+    public int getInt(String name, int defaultValue) {
+        String value = get(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("option '--" + name + "' expects a number, got '" + value + "'.");
+        }
+    }
+}
+
+class CompressionResult {
+    private int linesConsumed;
+    private int compressedLine;
+
+    public CompressionResult(int compressedLine) {
+        this(compressedLine, 1);
+    }
+    public CompressionResult(int compressedLine, int linesConsumed) {
+        this.linesConsumed = linesConsumed;
+        this.compressedLine = compressedLine;
+    }
+
+    public int getLinesConsumed() {
+        return linesConsumed;
+    }
+    public int getCompressedLine() {
+        return compressedLine;
+    }
+}
+
+/* ======= Input Helpers ======= */
+
+/**
+ * CompressionInput is a utility class that represents a file that has
+ *  been normalized into an array of packed instruction words.
+ */
+class CompressionInput {
+
+    private final int[] words;
+    public CompressionInput(String filename) throws IOException {
+        this(Files.readAllLines(Paths.get(filename)));
+    }
+
+    /**
+     * @param lines read, never changed: a library caller may still own them, or they may be unmodifiable
+     */
+    public CompressionInput(List<String> lines) {
+        // if there is an extra line, it's left out
+        final boolean trailingBlank = !lines.isEmpty() && lines.get(lines.size()-1).equals("");
+        words = new int[lines.size() - (trailingBlank ? 1 : 0)];
+        for (int i = 0; i!=words.length; ++i) {
+            words[i] = Formatter.parseBinaryString(lines.get(i));
+        }
+    }
+
+    public CompressionInput(int[] words) {
+        this.words = words;
+    }
+
+    /**
+     * For subclasses that supply their words some other way
+     */
+    protected CompressionInput() {
+        this.words = null;
+    }
+
+    public int getWord(int line) {
+        return words[line];
+    }
+
+    public int size() {
+        return words.length;
+    }
+}
+
+/**
+ * MappedWordReader parses an uncompressed input file by memory mapping it and turning each line straight
+ *  into a word, without decoding characters or creating a String per line. Lines must be exactly WORD_BITS
+ *  '0'/'1' characters, ended by LF, CRLF or CR; like CompressionInput, a single blank line at the very end
+ *  is ignored.
+ */
+final class MappedWordReader {
+
+    // a single mapping can't exceed 2GB, so big files are mapped a piece at a time
+    private static final long MAP_CHUNK_BYTES = 1L << 30;
+    // a word plus CRLF
+    private static final int MAX_LINE_BYTES = Formatter.WORD_BITS + 2;
+
+    private static final long ASCII_ZEROS = 0x3030303030303030L;
+    private static final long NOT_LOW_BITS = 0xFEFEFEFEFEFEFEFEL;
+    // moves the low bit of each of 8 bytes into the top byte, first byte most significant
+    private static final long GATHER_BITS = 0x0102040810204080L;
+
+    private MappedWordReader() {}
+
+    static int[] readWords(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            final long fileSize = channel.size();
+            // every line but the last takes at least WORD_BITS + 1 bytes
+            final long maxLines = (fileSize + 1) / (Formatter.WORD_BITS + 1) + 1;
+            if (maxLines > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException("'" + filename + "' has too many lines to hold in memory");
+            }
+            int[] words = new int[(int) maxLines];
+            int count = 0;
+            long position = 0;
+            while (position < fileSize) {
+                final long length = Math.min(MAP_CHUNK_BYTES, fileSize - position);
+                final boolean lastChunk = position + length == fileSize;
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                final int limit = buffer.limit();
+                int p = 0;
+                while (p < limit) {
+                    // leave a line that might straddle the end of this mapping for the next one
+                    if (!lastChunk && limit - p < MAX_LINE_BYTES) {
+                        break;
+                    }
+                    byte c = buffer.get(p);
+                    if (c == '\n' || c == '\r') {
+                        final int end = p + (c == '\r' && p + 1 < limit && buffer.get(p + 1) == '\n' ? 2 : 1);
+                        if (lastChunk && end == limit) {
+                            p = end;
+                            break;
+                        }
+                        throw new IllegalArgumentException("blank line in the middle of '" + filename + "' at byte " + (position + p));
+                    }
+                    if (limit - p < Formatter.WORD_BITS) {
+                        throw new IllegalArgumentException("line shorter than " + Formatter.WORD_BITS + " bits at byte " + (position + p));
+                    }
+                    words[count++] = parseWord(buffer, p, position);
+                    p += Formatter.WORD_BITS;
+                    if (p < limit) {
+                        c = buffer.get(p);
+                        if (c == '\r') {
+                            ++p;
+                            if (p < limit && buffer.get(p) == '\n') {
+                                ++p;
+                            }
+                        } else if (c == '\n') {
+                            ++p;
+                        } else {
+                            throw new IllegalArgumentException("line longer than " + Formatter.WORD_BITS + " bits at byte " + (position + p));
+                        }
+                    }
+                }
+                position += p;
+            }
+            if (count == 0) {
+                throw new IllegalArgumentException("input file '" + filename + "' has no instructions");
+            }
+            return count == words.length ? words : Arrays.copyOf(words, count);
+        }
+    }
+
+    /**
+     * Turns WORD_BITS ASCII digits starting at p into a word, eight characters at a time.
+     */
+    private static int parseWord(ByteBuffer buffer, int p, long basePosition) {
+        return (parseByte(buffer.getLong(p), p, basePosition) << 24)
+                | (parseByte(buffer.getLong(p + 8), p + 8, basePosition) << 16)
+                | (parseByte(buffer.getLong(p + 16), p + 16, basePosition) << 8)
+                | parseByte(buffer.getLong(p + 24), p + 24, basePosition);
+    }
+
+    private static int parseByte(long chars, int p, long basePosition) {
+        final long digits = chars - ASCII_ZEROS;
+        // every byte has to have been '0' or '1'; anything else leaves bits outside the lowest one (or borrows)
+        if ((chars & NOT_LOW_BITS) != ASCII_ZEROS) {
+            throw new IllegalArgumentException("expected only '0' and '1' near byte " + (basePosition + p));
+        }
+        return (int) ((digits * GATHER_BITS) >>> 56);
+    }
+}
+
+/**
+ * StreamingCompressionInput reads an input file lazily, keeping only a sliding window of recent lines.
+ *  Strategies only ever look one line back and a few lines ahead, so a small window is plenty. The number
+ *  of lines has to be known up front (see countWords), since RLE asks for size() while looking ahead.
+ */
+class StreamingCompressionInput extends CompressionInput implements Closeable {
+
+    // must comfortably exceed the RLE look-back plus look-ahead
+    private static final int WINDOW_SIZE = 1 << 12;
+
+    private final BufferedReader reader;
+    private final int size;
+    private final int[] window = new int[WINDOW_SIZE];
+    private int loaded = 0;
+
+    StreamingCompressionInput(String filename, int size) throws IOException {
+        this.reader = Files.newBufferedReader(Paths.get(filename));
+        this.size = size;
+    }
+
+    /**
+     * Reads the whole file once, counting every word into counts.
+     * @param filename
+     * @param counts may be null to just count the lines
+     * @return the number of lines, ignoring a trailing blank line just like CompressionInput
+     */
+    static int countWords(String filename, WordCounts counts) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(filename))) {
+            int lines = 0;
+            boolean pendingBlank = false;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (pendingBlank) {
+                    // a blank line that wasn't the last one
+                    throw new IllegalArgumentException("blank line in the middle of '" + filename + "' at line " + (lines + 1));
+                }
+                if (line.isEmpty()) {
+                    pendingBlank = true;
+                    continue;
+                }
+                if (line.length() != Formatter.WORD_BITS) {
+                    throw new IllegalArgumentException("line " + (lines + 1) + " of '" + filename + "' is " + line.length() + " characters, not " + Formatter.WORD_BITS + " bits");
+                }
+                final int word = Formatter.parseBinaryString(line);
+                if (counts != null) {
+                    counts.add(word, lines);
+                }
+                ++lines;
+            }
+            if (lines == 0) {
+                throw new IllegalArgumentException("input file '" + filename + "' has no instructions");
+            }
+            return lines;
+        }
+    }
+
+    @Override
+    public int getWord(int line) {
+        if (line >= size) {
+            throw new IndexOutOfBoundsException("line " + line + " out of bounds for size " + size);
+        }
+        if (line < loaded - WINDOW_SIZE) {
+            throw new IllegalStateException("line " + line + " has already left the input window");
+        }
+        while (loaded <= line) {
+            try {
+                String text = reader.readLine();
+                if (text == null) {
+                    throw new IllegalStateException("input ended after " + loaded + " lines, expected " + size);
+                }
+                window[loaded & (WINDOW_SIZE - 1)] = Formatter.parseBinaryString(text);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            ++loaded;
+        }
+        return window[line & (WINDOW_SIZE - 1)];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
+
+/**
+ * DecompressionInput is a utility class that takes in a decompression output
+ *  and automatically segments it by instruction.
+ */
+class DecompressionInput {
+    private final int[] dictList;
+    private final String sharedDictionaryId;
+    private IntList compressedInstructions;
+    private IntList formatInts;
+
+    public DecompressionInput(List<String> compressedLines, List<CompressionStrategy> strategies, String dictSep, int formatBits) {
+        // will represent the starting index of the dict index
+        int dictIndex = 0;
+        // run the loop until we hit the dictionary
+        for (String line : compressedLines) {
+            if (line.equals(dictSep)) {
+                break;
+            }
+            ++dictIndex;
+        }
+        // go ahead and assign the dict since we are done with processing it
+        // the dictionary starts one past the separator, which is why we add one.
+        List<String> rawDict = compressedLines.subList(dictIndex + 1, compressedLines.size());
+        sharedDictionaryId = DictionaryStore.referenceIn(rawDict);
+        dictList = DictionaryStore.entriesIn(rawDict);
+        // the compressed lines are read as one long run of bits, without gluing them together first
+        Iterator<String> lines = compressedLines.subList(0, dictIndex).iterator();
+        separateInstructions(new DecodeEngine(strategies, formatBits), new TextBitReader(() -> lines.hasNext() ? lines.next() : null));
+    }
+
+    public DecompressionInput(String filename, List<CompressionStrategy> strategies, String dictSep, int formatBits) throws IOException {
+        this(Files.readAllLines(Paths.get(filename)), strategies, dictSep, formatBits);
+    }
+
+    public int getRawDict(int i) {
+        return dictList[i];
+    }
+
+    /**
+     * @return the shared dictionary the input names instead of carrying its own, or null
+     */
+    public String sharedDictionaryId() {
+        return sharedDictionaryId;
+    }
+
+    public int rawDictSize() {
+        return dictList.length;
+    }
+
+    public int getCmpdInstruction(int i) {
+        return compressedInstructions.get(i);
+    }
+
+    public int getCmpdFormat(int i) {
+        return formatInts.get(i);
+    }
+
+    public int cmpdInstrucionSize() {
+        return compressedInstructions.size();
+    }
+
+    private void separateInstructions(DecodeEngine engine, BitInput bits) {
+        // Lists to hold separated compressed instructions.
+        compressedInstructions = new IntList();
+        formatInts = new IntList();
+        try {
+            engine.forEachInstruction(bits, (format, payload) -> {
+                compressedInstructions.add(payload);
+                formatInts.add(format);
+                return true;
+            });
+        } catch (IOException e) {
+            // the lines are already in memory, so this can't really happen
+            throw new UncheckedIOException(e);
+        }
+    }
+}
+
+/**
+ * DecodeEngine is the decompression loop shared by every input format. Field widths come from a per-format
+ *  table built once from each strategy's getEncodingLength(), and bits are pulled straight out of a BitInput,
+ *  so nothing is allocated per instruction.
+ */
+final class DecodeEngine {
+
+    interface InstructionVisitor {
+        /**
+         * @return whether to carry on with the next instruction
+         */
+        boolean visit(int format, int payload);
+    }
+
+    private final CompressionStrategy[] strategies;
+    private final int[] encodingLengths;
+    private final int FORMAT_BITS;
+
+    DecodeEngine(List<CompressionStrategy> strategies, int formatBits) {
+        if (strategies.size() > (1 << formatBits)) {
+            throw new IllegalArgumentException("more strategies than " + formatBits + " format bits can tell apart");
+        }
+        this.FORMAT_BITS = formatBits;
+        this.strategies = strategies.toArray(new CompressionStrategy[0]);
+        // formats beyond the last strategy get a length that can never fit, so they end up as padding (or an error)
+        this.encodingLengths = new int[1 << formatBits];
+        Arrays.fill(encodingLengths, Integer.MAX_VALUE);
+        for (int format = 0; format != this.strategies.length; ++format) {
+            encodingLengths[format] = this.strategies[format].getEncodingLength();
+        }
+    }
+
+    /**
+     * Splits bits into instructions. Decoding stops once no more than FORMAT_BITS bits are left, or once an
+     *  instruction doesn't fit in what is left, which must then be zero padding. The visitor can also stop it early.
+     * @param bits
+     * @param visitor
+     */
+    void forEachInstruction(BitInput bits, InstructionVisitor visitor) throws IOException {
+        while (bits.hasMoreThan(FORMAT_BITS)) {
+            final int format = bits.readBits(FORMAT_BITS);
+            final int encodingLen = encodingLengths[format];
+            if (encodingLen == Integer.MAX_VALUE || !bits.hasAtLeast(encodingLen)) {
+                // since padding should only be zeros, there is something wrong if the format is not.
+                if (format != 0) {
+                    throw new IllegalStateException("unexpected nonzero format during padding processing");
+                }
+                return;
+            }
+            if (!visitor.visit(format, bits.readBits(encodingLen))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Decodes every instruction in bits straight into output.
+     */
+    void decode(BitInput bits, Dictionary dict, DecompressionOutput output) throws IOException {
+        decodeWhile(bits, dict, output, () -> true);
+    }
+
+    /**
+     * Like decode, but also counts every instruction and output line into metrics.
+     */
+    void decode(BitInput bits, Dictionary dict, DecompressionOutput output, CodecMetrics metrics) throws IOException {
+        ExpansionTables tables = new ExpansionTables(strategies, dict);
+        DecompressionOutput counted = metrics.counting(output);
+        forEachInstruction(bits, (format, payload) -> {
+            metrics.instruction(format, FORMAT_BITS + encodingLengths[format]);
+            tables.decompress(format, payload, counted);
+            return true;
+        });
+    }
+
+    /**
+     * Like decode, but checks keepGoing after every instruction and stops as soon as it is false.
+     */
+    void decodeWhile(BitInput bits, Dictionary dict, DecompressionOutput output, BooleanSupplier keepGoing) throws IOException {
+        decodeWhile(bits, new ExpansionTables(strategies, dict), output, keepGoing);
+    }
+
+    /**
+     * Like decode, but with tables that are already built (and may be reused across calls on one thread).
+     */
+    void decode(BitInput bits, ExpansionTables tables, DecompressionOutput output) throws IOException {
+        decodeWhile(bits, tables, output, () -> true);
+    }
+
+    private void decodeWhile(BitInput bits, ExpansionTables tables, DecompressionOutput output, BooleanSupplier keepGoing) throws IOException {
+        forEachInstruction(bits, (format, payload) -> {
+            tables.decompress(format, payload, output);
+            return keepGoing.getAsBoolean();
+        });
+    }
+}
+
+/**
+ * ParallelDecoder decompresses on a pool of threads. The compressed bits are loaded into memory and split into
+ *  segments at instruction boundaries, taken from the block index if the file has one, or otherwise from a
+ *  quick sequential scan that only reads format codes and RLE counts. Each segment is then decoded and turned
+ *  into text on its own, straight into an array of the right size, and the text is written out in order.
+ *
+ *  The scan never starts a segment on an RLE instruction (blocks never start with one either), so the word an
+ *  RLE repeats is always inside its own segment and no segment has to wait for the one before it.
+ */
+final class ParallelDecoder {
+
+    // '0'/'1' for every bit of a word, then the newline
+    private static final int LINE_BYTES = Formatter.WORD_BITS + 1;
+
+    private final CompressionStrategy[] strategies;
+    private final DecodeEngine engine;
+    private final int SEGMENT_INSTRUCTIONS;
+
+    ParallelDecoder(List<CompressionStrategy> strategies, int formatBits, int segmentInstructions) {
+        this.strategies = strategies.toArray(new CompressionStrategy[0]);
+        this.engine = new DecodeEngine(strategies, formatBits);
+        this.SEGMENT_INSTRUCTIONS = segmentInstructions;
+    }
+
+    /**
+     * Decodes all of input into output, as text.
+     */
+    void decode(CompressedBitInput input, Dictionary dict, OutputStream output, ForkJoinPool pool) throws IOException {
+        final PackedBits bits = PackedBits.read(input);
+        final LongList segmentBits = new LongList();
+        final LongList segmentLines = new LongList();
+        BlockIndex blocks = input instanceof BinaryDecompressionInput ? ((BinaryDecompressionInput) input).getBlockIndex() : null;
+        final long totalLines;
+        if (blocks != null && blocks.size() != 0) {
+            // group small blocks together, so a segment still has about SEGMENT_INSTRUCTIONS instructions
+            final int blocksPerSegment = Math.max(1, SEGMENT_INSTRUCTIONS / blocks.instructionsPerBlock());
+            for (int block = 0; block < blocks.size(); block += blocksPerSegment) {
+                segmentBits.add(blocks.bitOffset(block));
+                segmentLines.add(blocks.firstLine(block));
+            }
+            // only the last segment has to be scanned, to find where the output ends
+            totalLines = scan(bits, segmentBits.get(segmentBits.size() - 1), segmentLines.get(segmentLines.size() - 1), null, null);
+        } else {
+            totalLines = scan(bits, 0, 0, segmentBits, segmentLines);
+        }
+        if (totalLines == 0) {
+            // an empty output is still written as a single newline
+            output.write('\n');
+            return;
+        }
+
+        final ThreadLocal<ExpansionTables> tables = ThreadLocal.withInitial(() -> new ExpansionTables(strategies, dict));
+        final int segmentCount = segmentBits.size();
+        // a few segments per thread at a time keeps every thread busy without holding the whole output
+        final int wave = Math.max(1, pool.getParallelism() * 2);
+        for (int waveStart = 0; waveStart < segmentCount; waveStart += wave) {
+            List<Callable<byte[]>> segments = new ArrayList<>();
+            for (int segment = waveStart; segment != Math.min(segmentCount, waveStart + wave); ++segment) {
+                final long fromBit = segmentBits.get(segment);
+                final long toBit = segment + 1 == segmentCount ? bits.length() : segmentBits.get(segment + 1);
+                final long lines = (segment + 1 == segmentCount ? totalLines : segmentLines.get(segment + 1)) - segmentLines.get(segment);
+                if (lines * LINE_BYTES > Integer.MAX_VALUE) {
+                    throw new IllegalStateException("segment " + segment + " decodes to too many lines (" + lines + ")");
+                }
+                segments.add(() -> decodeSegment(bits.reader(fromBit, toBit), tables.get(), (int) lines));
+            }
+            for (Future<byte[]> segment : pool.invokeAll(segments)) {
+                try {
+                    output.write(segment.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("interrupted while decompressing", e);
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("parallel decompression failed", e.getCause());
+                }
+            }
+        }
+    }
+
+    /**
+     * Walks the instructions from fromBit to the end of the stream without decoding them.
+     * @param segmentBits if not null, gets the bit offset of every segment start
+     * @param segmentLines if not null, gets the first line of every segment
+     * @return the output line count at the end of the stream
+     */
+    private long scan(PackedBits bits, long fromBit, long fromLine, LongList segmentBits, LongList segmentLines) throws IOException {
+        final PackedBits.Reader reader = bits.reader(fromBit, bits.length());
+        // {line, bit offset of the next instruction, instructions in the current segment}
+        final long[] at = {fromLine, fromBit, 0};
+        engine.forEachInstruction(reader, (format, payload) -> {
+            final boolean isRun = strategies[format] instanceof RunLengthEncodingStrategy;
+            if (segmentBits != null && !isRun && (at[2] == 0 || at[2] >= SEGMENT_INSTRUCTIONS)) {
+                segmentBits.add(at[1]);
+                segmentLines.add(at[0]);
+                at[2] = 0;
+            }
+            at[0] += isRun ? ((RunLengthEncodingStrategy) strategies[format]).linesDecoded(payload) : 1;
+            at[1] = reader.position();
+            ++at[2];
+            return true;
+        });
+        return at[0];
+    }
+
+    private byte[] decodeSegment(BitInput bits, ExpansionTables tables, int lines) throws IOException {
+        SegmentOutput words = new SegmentOutput(lines);
+        engine.decode(bits, tables, words);
+        if (words.size != lines) {
+            throw new IllegalStateException("segment decoded to " + words.size + " lines instead of " + lines);
+        }
+        byte[] text = new byte[lines * LINE_BYTES];
+        int pos = 0;
+        for (int i = 0; i != lines; ++i) {
+            final int word = words.words[i];
+            for (int bit = Formatter.WORD_BITS - 1; bit >= 0; --bit) {
+                text[pos++] = (byte) ('0' + ((word >>> bit) & 1));
+            }
+            text[pos++] = '\n';
+        }
+        return text;
+    }
+
+    /**
+     * Collects one segment's words into an array sized from the scan.
+     */
+    private static final class SegmentOutput implements DecompressionOutput {
+        private final int[] words;
+        private int size = 0;
+
+        SegmentOutput(int lines) {
+            this.words = new int[lines];
+        }
+
+        @Override
+        public void add(int instruction) {
+            if (size == words.length) {
+                throw new IllegalStateException("segment decoded to more than the " + words.length + " lines scanned");
+            }
+            words[size++] = instruction;
+        }
+
+        @Override
+        public int previousInstruction() {
+            if (size == 0) {
+                throw new IllegalStateException("segment starts with RLE, there is no previous instruction to repeat");
+            }
+            return words[size - 1];
+        }
+    }
+}
+
+/**
+ * PackedBits holds a whole compressed stream in memory, 64 bits to a long, so any number of readers can
+ *  start anywhere in it at once.
+ */
+final class PackedBits {
+    private final long[] words;
+    private final long length;
+
+    private PackedBits(long[] words, long length) {
+        this.words = words;
+        this.length = length;
+    }
+
+    /**
+     * Reads every remaining bit of input.
+     */
+    static PackedBits read(BitInput input) throws IOException {
+        LongList words = new LongList();
+        long length = 0;
+        long current = 0;
+        while (input.hasAtLeast(1)) {
+            final int take = input.hasAtLeast(Integer.SIZE) ? Integer.SIZE : 1;
+            final long value = input.readBits(take) & 0xFFFFFFFFL;
+            final int free = Long.SIZE - (int) (length & 63);
+            if (take < free) {
+                current |= value << (free - take);
+            } else {
+                // fills up the current long, and maybe spills into the next one
+                current |= value >>> (take - free);
+                words.add(current);
+                current = take == free ? 0 : value << (Long.SIZE - (take - free));
+            }
+            length += take;
+        }
+        if ((length & 63) != 0) {
+            words.add(current);
+        }
+        long[] packed = new long[words.size()];
+        for (int i = 0; i != packed.length; ++i) {
+            packed[i] = words.get(i);
+        }
+        return new PackedBits(packed, length);
+    }
+
+    long length() {
+        return length;
+    }
+
+    /**
+     * @return a reader over bits [fromBit, toBit)
+     */
+    Reader reader(long fromBit, long toBit) {
+        if (fromBit < 0 || fromBit > toBit || toBit > length) {
+            throw new IllegalArgumentException("bits [" + fromBit + ", " + toBit + ") are outside the " + length + " bit stream");
+        }
+        return new Reader(fromBit, toBit);
+    }
+
+    final class Reader implements BitInput {
+        private long position;
+        private final long end;
+
+        private Reader(long position, long end) {
+            this.position = position;
+            this.end = end;
+        }
+
+        long position() {
+            return position;
+        }
+
+        @Override
+        public boolean hasMoreThan(int numBits) {
+            return end - position > numBits;
+        }
+
+        @Override
+        public boolean hasAtLeast(int numBits) {
+            return end - position >= numBits;
+        }
+
+        @Override
+        public int readBits(int numBits) {
+            if (end - position < numBits) {
+                throw new IllegalStateException("compressed bits ended in the middle of an instruction");
+            }
+            if (numBits == 0) {
+                return 0;
+            }
+            final int index = (int) (position >>> 6);
+            final int offset = (int) (position & 63);
+            // the numBits bits starting at offset, lined up at the top of a long
+            long top = words[index] << offset;
+            if (offset + numBits > Long.SIZE) {
+                top |= words[index + 1] >>> (Long.SIZE - offset);
+            }
+            position += numBits;
+            return (int) (top >>> (Long.SIZE - numBits));
+        }
+    }
+}
+
+/**
+ * ExpansionTables turns dictionary based payloads into words with a single array load. A DictionaryStrategy
+ *  payload decodes to the same word every time for a given dictionary, so each format gets a flat table
+ *  indexed by payload. A format's table is only allocated once the stream actually uses it, and each slot is
+ *  only worked out the first time it is hit, so small files pay next to nothing.
+ */
+final class ExpansionTables {
+
+    // 2^18 slots covers every dictionary strategy up to a 256 entry dictionary; anything wider is decoded the slow way
+    private static final int MAX_TABLE_BITS = 18;
+    // high half of a slot is set once the slot holds a word
+    private static final long FILLED = 1L << 32;
+    // marks a format that is always decoded through its strategy
+    private static final long[] NO_TABLE = new long[0];
+
+    private final CompressionStrategy[] strategies;
+    private final Dictionary dict;
+    private final long[][] tables;
+
+    ExpansionTables(CompressionStrategy[] strategies, Dictionary dict) {
+        this.strategies = strategies;
+        this.dict = dict;
+        this.tables = new long[strategies.length][];
+    }
+
+    /**
+     * Same as strategies[format].decompress(dict, output, payload).
+     */
+    void decompress(int format, int payload, DecompressionOutput output) {
+        long[] table = tables[format];
+        if (table == null) {
+            CompressionStrategy strategy = strategies[format];
+            boolean tabled = strategy instanceof DictionaryStrategy && strategy.getEncodingLength() <= MAX_TABLE_BITS;
+            table = tables[format] = tabled ? new long[1 << strategy.getEncodingLength()] : NO_TABLE;
+        }
+        if (table == NO_TABLE) {
+            // RLE and the original word need more than the payload, so they go through the strategy
+            strategies[format].decompress(dict, output, payload);
+            return;
+        }
+        long slot = table[payload];
+        if (slot == 0) {
+            // an out of range dictionary index throws here, just like decompress would
+            slot = table[payload] = FILLED | (((DictionaryStrategy) strategies[format]).expand(dict, payload) & 0xFFFFFFFFL);
+        }
+        output.add((int) slot);
+    }
+}
+
+/**
+ * Something compressed bits can be read from, most significant first.
+ */
+interface BitInput {
+    /**
+     * @param numBits
+     * @return whether strictly more than numBits bits are left
+     */
+    boolean hasMoreThan(int numBits) throws IOException;
+
+    /**
+     * @param numBits
+     * @return whether at least numBits bits are left
+     */
+    boolean hasAtLeast(int numBits) throws IOException;
+
+    /**
+     * Reads the next numBits (at most 32) bits, most significant first.
+     * @param numBits
+     * @return
+     */
+    int readBits(int numBits) throws IOException;
+}
+
+/**
+ * A compressed file read as a stream of bits, along with its dictionary.
+ */
+interface CompressedBitInput extends BitInput, Closeable {
+    /**
+     * @return the dictionary stored in the file, empty if it names a shared one instead
+     */
+    int[] getDictionary();
+
+    /**
+     * @return the shared dictionary the file names, see DictionaryStore, or null if it carries its own
+     */
+    String getSharedDictionaryId();
+}
+
+/**
+ * TextBitReader turns lines of '0'/'1' characters into bits, buffering them in a single long. Lines are
+ *  consumed one at a time and never joined together.
+ */
+class TextBitReader implements BitInput {
+
+    /**
+     * Hands out the compressed lines in order, then null once they run out.
+     */
+    interface LineSource {
+        String nextLine() throws IOException;
+    }
+
+    // bits are kept in a long, and a single read is at most 32 of them
+    private static final int MAX_BUFFERED_BITS = Long.SIZE - 8;
+
+    private final LineSource lines;
+
+    private String line = "";
+    private int linePos = 0;
+    private boolean ended = false;
+
+    private long bits = 0;
+    private int bitCount = 0;
+
+    TextBitReader(LineSource lines) {
+        this.lines = lines;
+    }
+
+    /**
+     * Tops the bit buffer up until it holds at least the requested number of bits, or the lines have run out.
+     */
+    private void fill(int wanted) throws IOException {
+        while (bitCount < wanted && bitCount < MAX_BUFFERED_BITS) {
+            if (linePos == line.length()) {
+                if (ended) {
+                    return;
+                }
+                String next = lines.nextLine();
+                if (next == null) {
+                    ended = true;
+                    return;
+                }
+                line = next;
+                linePos = 0;
+                continue;
+            }
+            // take as many characters from this line as fit
+            final int take = Math.min(line.length() - linePos, MAX_BUFFERED_BITS - bitCount);
+            for (int end = linePos + take; linePos != end; ++linePos) {
+                final int bit = line.charAt(linePos) - '0';
+                if ((bit & ~1) != 0) {
+                    throw new IllegalStateException("unexpected character '" + line.charAt(linePos) + "' in compressed bits");
+                }
+                bits = (bits << 1) | bit;
+            }
+            bitCount += take;
+        }
+    }
+
+    @Override
+    public boolean hasMoreThan(int numBits) throws IOException {
+        fill(numBits + 1);
+        return bitCount > numBits;
+    }
+
+    @Override
+    public boolean hasAtLeast(int numBits) throws IOException {
+        fill(numBits);
+        return bitCount >= numBits;
+    }
+
+    @Override
+    public int readBits(int numBits) throws IOException {
+        fill(numBits);
+        if (bitCount < numBits) {
+            throw new IllegalStateException("compressed bits ended in the middle of an instruction");
+        }
+        bitCount -= numBits;
+        return (int) ((bits >>> bitCount) & ((1L << numBits) - 1));
+    }
+}
+
+/**
+ * StreamingDecompressionInput reads a compressed file as a stream of bits, without ever joining its lines
+ *  together. The dictionary lives at the end of the file, so it is read first from the file's tail.
+ */
+class StreamingDecompressionInput implements CompressedBitInput {
+
+    // plenty for a 16 entry dictionary; doubled until the separator turns up
+    private static final int INITIAL_TAIL_BYTES = 4096;
+
+    private final BufferedReader reader;
+    private final int[] dictionary;
+    private final String sharedDictionaryId;
+    private final TextBitReader bits;
+
+    StreamingDecompressionInput(String filename, String dictSep) throws IOException {
+        List<String> dictionarySection = readTailDictionary(Paths.get(filename), dictSep);
+        this.dictionary = DictionaryStore.entriesIn(dictionarySection);
+        this.sharedDictionaryId = DictionaryStore.referenceIn(dictionarySection);
+        this.reader = Files.newBufferedReader(Paths.get(filename));
+        this.bits = new TextBitReader(() -> {
+            String line = reader.readLine();
+            return line == null || line.equals(dictSep) ? null : line;
+        });
+    }
+
+    /**
+     * @return the lines after the separator
+     */
+    private static List<String> readTailDictionary(Path path, String dictSep) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long fileSize = channel.size();
+            long tailSize = Math.min(fileSize, INITIAL_TAIL_BYTES);
+            while (true) {
+                ByteBuffer tail = ByteBuffer.allocate((int) tailSize);
+                while (tail.hasRemaining()) {
+                    if (channel.read(tail, fileSize - tailSize + tail.position()) < 0) {
+                        throw new IOException("file shrank while reading its dictionary");
+                    }
+                }
+                List<String> lines = new ArrayList<>(Arrays.asList(
+                        new String(tail.array(), StandardCharsets.US_ASCII).split("\\r?\\n|\\r", -1)));
+                // match Files.readAllLines, which doesn't report an empty line after the final newline
+                if (lines.get(lines.size() - 1).isEmpty()) {
+                    lines.remove(lines.size() - 1);
+                }
+                // unless we have the whole file the first line is probably cut off, so don't trust it
+                int firstWhole = tailSize == fileSize ? 0 : 1;
+                for (int i = lines.size() - 1; i >= firstWhole; --i) {
+                    if (lines.get(i).equals(dictSep)) {
+                        return lines.subList(i + 1, lines.size());
+                    }
+                }
+                if (tailSize == fileSize) {
+                    throw new IllegalArgumentException("no dictionary separator found in '" + path + "'");
+                }
+                tailSize = Math.min(fileSize, tailSize * 2);
+            }
+        }
+    }
+
+    @Override
+    public int[] getDictionary() {
+        return dictionary;
+    }
+
+    @Override
+    public String getSharedDictionaryId() {
+        return sharedDictionaryId;
+    }
+
+    @Override
+    public boolean hasMoreThan(int numBits) throws IOException {
+        return bits.hasMoreThan(numBits);
+    }
+
+    @Override
+    public boolean hasAtLeast(int numBits) throws IOException {
+        return bits.hasAtLeast(numBits);
+    }
+
+    @Override
+    public int readBits(int numBits) throws IOException {
+        return bits.readBits(numBits);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
+
+/**
+ * CodecLayout holds the sizes that shape a compressed stream: the most dictionary entries there can be (and so
+ *  how wide a dictionary index is), how wide the format field is and how wide a bit location is. Every strategy
+ *  takes its field widths from it. A BinaryFormat file records the layout in its header; text files have no
+ *  header, so the same layout has to be given again to decompress them.
+ */
+final class CodecLayout {
+    static final int MAX_DICTIONARY_SIZE = 256;
+    static final int MAX_FORMAT_BITS = 8;
+
+    private final int dictionarySize;
+    private final int dictionaryIndexBits;
+    private final int formatBits;
+    private final int locationBits;
+
+    CodecLayout(int dictionarySize, int formatBits, int locationBits) {
+        if (dictionarySize < 2 || dictionarySize > MAX_DICTIONARY_SIZE) {
+            throw new IllegalArgumentException("dictionary size must be between 2 and " + MAX_DICTIONARY_SIZE + ", got " + dictionarySize + ".");
+        }
+        if (formatBits < 1 || formatBits > MAX_FORMAT_BITS) {
+            throw new IllegalArgumentException("format bits must be between 1 and " + MAX_FORMAT_BITS + ", got " + formatBits + ".");
+        }
+        // a location never needs to reach past the last bit of a word
+        final int maxLocationBits = Integer.SIZE - Integer.numberOfLeadingZeros(Formatter.WORD_BITS - 1);
+        if (locationBits < 1 || locationBits > maxLocationBits) {
+            throw new IllegalArgumentException("location bits must be between 1 and " + maxLocationBits + ", got " + locationBits + ".");
+        }
+        this.dictionarySize = dictionarySize;
+        this.dictionaryIndexBits = Integer.SIZE - Integer.numberOfLeadingZeros(dictionarySize - 1);
+        this.formatBits = formatBits;
+        this.locationBits = locationBits;
+    }
+
+    int dictionarySize() {
+        return dictionarySize;
+    }
+
+    int dictionaryIndexBits() {
+        return dictionaryIndexBits;
+    }
+
+    int formatBits() {
+        return formatBits;
+    }
+
+    int locationBits() {
+        return locationBits;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof CodecLayout)) {
+            return false;
+        }
+        CodecLayout other = (CodecLayout) o;
+        return dictionarySize == other.dictionarySize && formatBits == other.formatBits && locationBits == other.locationBits;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(dictionarySize, formatBits, locationBits);
+    }
+}
+
+/**
+ * BinaryFormat describes the packed binary container. Everything is big endian:
+ *
+ *  magic (4 bytes, "SIMB") | version (1) | word bits (1) | format bits (1) | flags (1)
+ *  | dictionary size (4) | stream length in bits (8)
+ *  | max dictionary size (2) | location bits (1) | reserved (1)   (version 2 on, the rest of the CodecLayout)
+ *  | stream, packed most significant bit first and zero padded to a whole byte
+ *  | dictionary, 4 bytes per entry; or if FLAG_SHARED_DICTIONARY is set, the shared dictionary's id (8) and a
+ *    dictionary size of 0
+ *  | block index, only if FLAG_BLOCK_INDEX is set: block count (4) | instructions per block (4)
+ *    | per block: bit offset in the stream (8) | first output line (8)
+ *
+ *  Like the text format, the dictionary comes after the instructions, so a file can be written front to back
+ *  with only the header patched at the end. A block structured stream is still an ordinary stream, so
+ *  readers that skip the index decode it just the same.
+ */
+final class BinaryFormat {
+    static final int MAGIC = 0x53494D42;
+    static final byte VERSION = 2;
+    static final int FLAG_BLOCK_INDEX = 1;
+    static final int FLAG_SHARED_DICTIONARY = 2;
+    static final int HEADER_BYTES = 24;
+    // version 1 headers stop before the layout fields, and always used the default layout
+    static final int VERSION_1_HEADER_BYTES = 20;
+    static final int VERSION_1_DICTIONARY_SIZE = 16;
+    static final int VERSION_1_LOCATION_BITS = 5;
+    static final int BUFFER_BYTES = 1 << 16;
+
+    private BinaryFormat() {}
+}
+
+/**
+ * BinaryDecompressionInput reads the compressed bits of a BinaryFormat file.
+ */
+class BinaryDecompressionInput implements CompressedBitInput {
+
+    private final FileChannel channel;
+    private final int[] dictionary;
+    private final String sharedDictionaryId;
+    private final CodecLayout layout;
+    private final long streamStart;
+    private final BlockIndex blocks;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BinaryFormat.BUFFER_BYTES);
+
+    private final long streamBits;
+    private long bitsLeft;
+    private long bits = 0;
+    private int bitCount = 0;
+
+    BinaryDecompressionInput(String filename) throws IOException {
+        channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(BinaryFormat.VERSION_1_HEADER_BYTES);
+            readFully(header, 0);
+            header.flip();
+            if (header.getInt() != BinaryFormat.MAGIC) {
+                throw new IllegalArgumentException("'" + filename + "' is not a binary compressed file");
+            }
+            final byte version = header.get();
+            if (version != 1 && version != BinaryFormat.VERSION) {
+                throw new IllegalArgumentException("unsupported binary format version " + version);
+            }
+            final int wordBits = header.get();
+            final int formatBits = header.get();
+            if (wordBits != Formatter.WORD_BITS) {
+                throw new IllegalArgumentException("binary file uses " + wordBits + " bit words, expected " + Formatter.WORD_BITS);
+            }
+            final int flags = header.get();
+            if ((flags & ~(BinaryFormat.FLAG_BLOCK_INDEX | BinaryFormat.FLAG_SHARED_DICTIONARY)) != 0) {
+                throw new IllegalArgumentException("unsupported binary format flags " + flags);
+            }
+            final int dictSize = header.getInt();
+            streamBits = header.getLong();
+            bitsLeft = streamBits;
+            if (version == 1) {
+                layout = new CodecLayout(BinaryFormat.VERSION_1_DICTIONARY_SIZE, formatBits, BinaryFormat.VERSION_1_LOCATION_BITS);
+                streamStart = BinaryFormat.VERSION_1_HEADER_BYTES;
+            } else {
+                ByteBuffer layoutFields = ByteBuffer.allocate(BinaryFormat.HEADER_BYTES - BinaryFormat.VERSION_1_HEADER_BYTES);
+                readFully(layoutFields, BinaryFormat.VERSION_1_HEADER_BYTES);
+                layoutFields.flip();
+                layout = new CodecLayout(layoutFields.getShort() & 0xFFFF, formatBits, layoutFields.get());
+                streamStart = BinaryFormat.HEADER_BYTES;
+            }
+
+            // the dictionary sits right after the stream
+            final long dictPosition = streamStart + (streamBits + 7) / 8;
+            final boolean shared = (flags & BinaryFormat.FLAG_SHARED_DICTIONARY) != 0;
+            ByteBuffer dict = ByteBuffer.allocate(shared ? Long.BYTES : dictSize * Integer.BYTES);
+            readFully(dict, dictPosition);
+            dict.flip();
+            sharedDictionaryId = shared ? DictionaryStore.idOf(dict.getLong()) : null;
+            dictionary = new int[shared ? 0 : dictSize];
+            for (int i = 0; i != dictionary.length; ++i) {
+                dictionary[i] = dict.getInt();
+            }
+
+            // and the block index right after that
+            if ((flags & BinaryFormat.FLAG_BLOCK_INDEX) != 0) {
+                final long indexPosition = dictPosition + dict.capacity();
+                ByteBuffer indexHeader = ByteBuffer.allocate(2 * Integer.BYTES);
+                readFully(indexHeader, indexPosition);
+                indexHeader.flip();
+                final int blockCount = indexHeader.getInt();
+                blocks = new BlockIndex(indexHeader.getInt());
+                ByteBuffer entries = ByteBuffer.allocate(blockCount * 2 * Long.BYTES);
+                readFully(entries, indexPosition + indexHeader.capacity());
+                entries.flip();
+                for (int i = 0; i != blockCount; ++i) {
+                    blocks.add(entries.getLong(), entries.getLong());
+                }
+            } else {
+                blocks = null;
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        channel.position(streamStart);
+        buffer.limit(0);
+    }
+
+    private void readFully(ByteBuffer target, long position) throws IOException {
+        while (target.hasRemaining()) {
+            if (channel.read(target, position + target.position()) < 0) {
+                throw new IllegalArgumentException("binary compressed file is truncated");
+            }
+        }
+    }
+
+    @Override
+    public int[] getDictionary() {
+        return dictionary;
+    }
+
+    @Override
+    public String getSharedDictionaryId() {
+        return sharedDictionaryId;
+    }
+
+    /**
+     * @return the layout the file was written with
+     */
+    CodecLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * @return the file's block index, or null if it wasn't written in blocks
+     */
+    BlockIndex getBlockIndex() {
+        return blocks;
+    }
+
+    /**
+     * @return the byte offset of the stream, which is the header's size
+     */
+    long getStreamStart() {
+        return streamStart;
+    }
+
+    /**
+     * Moves reading to bitOffset bits into the stream.
+     * @param bitOffset
+     */
+    void seek(long bitOffset) throws IOException {
+        if (bitOffset < 0 || bitOffset > streamBits) {
+            throw new IllegalArgumentException("bit offset " + bitOffset + " is outside the " + streamBits + " bit stream");
+        }
+        final long byteOffset = bitOffset / 8;
+        channel.position(streamStart + byteOffset);
+        buffer.limit(0);
+        bitsLeft = streamBits - byteOffset * 8;
+        bits = 0;
+        bitCount = 0;
+        // drop the bits of the first byte that come before the offset
+        final int skip = (int) (bitOffset % 8);
+        if (skip != 0) {
+            readBits(skip);
+        }
+    }
+
+    private void fill(int wanted) throws IOException {
+        while (bitCount < wanted && bitsLeft > 0) {
+            if (!buffer.hasRemaining()) {
+                buffer.clear();
+                // never read past the stream into the dictionary
+                long streamBytesLeft = (bitsLeft + 7) / 8;
+                buffer.limit((int) Math.min(buffer.capacity(), streamBytesLeft));
+                if (channel.read(buffer) < 0) {
+                    throw new IllegalArgumentException("binary compressed file is truncated");
+                }
+                buffer.flip();
+                continue;
+            }
+            // take a whole byte, but only count the bits that belong to the stream
+            final int take = (int) Math.min(8, bitsLeft);
+            bits = (bits << take) | ((buffer.get() & 0xFF) >>> (8 - take));
+            bitCount += take;
+            bitsLeft -= take;
+        }
+    }
+
+    @Override
+    public boolean hasMoreThan(int numBits) throws IOException {
+        fill(numBits + 1);
+        return bitCount > numBits;
+    }
+
+    @Override
+    public boolean hasAtLeast(int numBits) throws IOException {
+        fill(numBits);
+        return bitCount >= numBits;
+    }
+
+    @Override
+    public int readBits(int numBits) throws IOException {
+        fill(numBits);
+        if (bitCount < numBits) {
+            throw new IllegalStateException("compressed bits ended in the middle of an instruction");
+        }
+        bitCount -= numBits;
+        return (int) ((bits >>> bitCount) & ((1L << numBits) - 1));
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
+
+/**
+ * BlockIndex records where each block of a block structured stream starts: its bit offset in the stream and
+ *  the first output line it decodes to. Blocks hold a fixed number of instructions (the last may be short).
+ */
+final class BlockIndex {
+    private final int INSTRUCTIONS_PER_BLOCK;
+    private final LongList bitOffsets = new LongList();
+    private final LongList firstLines = new LongList();
+
+    BlockIndex(int instructionsPerBlock) {
+        if (instructionsPerBlock < 1) {
+            throw new IllegalArgumentException("blocks need at least one instruction, got " + instructionsPerBlock);
+        }
+        this.INSTRUCTIONS_PER_BLOCK = instructionsPerBlock;
+    }
+
+    int instructionsPerBlock() {
+        return INSTRUCTIONS_PER_BLOCK;
+    }
+
+    void add(long bitOffset, long firstLine) {
+        bitOffsets.add(bitOffset);
+        firstLines.add(firstLine);
+    }
+
+    int size() {
+        return bitOffsets.size();
+    }
+
+    long bitOffset(int block) {
+        return bitOffsets.get(block);
+    }
+
+    long firstLine(int block) {
+        return firstLines.get(block);
+    }
+
+    /**
+     * @param line
+     * @return the last block starting at or before line, or -1 if there are no blocks
+     */
+    int blockContaining(long line) {
+        // every instruction decodes to at least one line, so first lines are strictly increasing
+        int lo = 0;
+        int hi = size() - 1;
+        int found = -1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (firstLines.get(mid) <= line) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+}
+
+/**
+ * StreamEnd is where an existing compressed stream stops, which is all appending to it needs to know: how many
+ *  bits, instructions and lines it holds, its last line, and the RunLengthState the compressor was left with.
+ *  That state isn't in the file, but it only depends on the words and where instructions (and blocks) start,
+ *  so it is worked out again here the way RunLengthEncodingStrategy.compress did at each instruction start.
+ */
+final class StreamEnd implements DecodeEngine.InstructionVisitor, DecompressionOutput {
+    private final CompressionStrategy[] strategies;
+    private final ExpansionTables tables;
+    private final int FORMAT_BITS;
+    // instructions per block, or 0 without a block index
+    private final int BLOCK_INSTRUCTIONS;
+
+    private long bits = 0;
+    private long instructions = 0;
+    private long lines = 0;
+    private int lastWord;
+    // the line before the instruction being decoded, and whether its first line has been seen yet
+    private int previousWord;
+    private boolean startingInstruction = false;
+    private final RunLengthState runs = new RunLengthState();
+
+    private StreamEnd(List<CompressionStrategy> strategies, Dictionary dict, int formatBits, int blockInstructions) {
+        this.strategies = strategies.toArray(new CompressionStrategy[0]);
+        this.tables = new ExpansionTables(this.strategies, dict);
+        this.FORMAT_BITS = formatBits;
+        this.BLOCK_INSTRUCTIONS = blockInstructions;
+    }
+
+    /**
+     * Decodes input up to the end of its stream, starting from the last block if it has a block index (blocks
+     *  never start with RLE, so nothing before is needed) or otherwise from the beginning.
+     */
+    static StreamEnd of(CompressedBitInput input, Dictionary dict, List<CompressionStrategy> strategies, int formatBits) throws IOException {
+        BlockIndex blocks = input instanceof BinaryDecompressionInput ? ((BinaryDecompressionInput) input).getBlockIndex() : null;
+        StreamEnd end = new StreamEnd(strategies, dict, formatBits, blocks == null ? 0 : blocks.instructionsPerBlock());
+        if (blocks != null && blocks.size() != 0) {
+            final int last = blocks.size() - 1;
+            ((BinaryDecompressionInput) input).seek(blocks.bitOffset(last));
+            end.bits = blocks.bitOffset(last);
+            end.instructions = (long) last * blocks.instructionsPerBlock();
+            end.lines = blocks.firstLine(last);
+        }
+        new DecodeEngine(strategies, formatBits).forEachInstruction(input, end);
+        return end;
+    }
+
+    @Override
+    public boolean visit(int format, int payload) {
+        previousWord = lastWord;
+        startingInstruction = true;
+        tables.decompress(format, payload, this);
+        bits += FORMAT_BITS + strategies[format].getEncodingLength();
+        ++instructions;
+        return true;
+    }
+
+    @Override
+    public void add(int instruction) {
+        if (startingInstruction) {
+            startingInstruction = false;
+            runAt(instruction);
+        }
+        lastWord = instruction;
+        ++lines;
+    }
+
+    /**
+     * Updates runs the way choosing an instruction for word, on line lines, did.
+     */
+    private void runAt(int word) {
+        final boolean blockStart = BLOCK_INSTRUCTIONS != 0 && instructions % BLOCK_INSTRUCTIONS == 0;
+        if (blockStart || lines == 0 || word != previousWord || (runs.hasLastCompressed && word == runs.lastCompressed)) {
+            runs.reset();
+        } else {
+            runs.lastCompressed = word;
+            runs.hasLastCompressed = true;
+        }
+    }
 
-            ++currLine;
+    @Override
+    public int previousInstruction() {
+        if (lines == 0) {
+            throw new IllegalStateException("no previous instruction to repeat");
         }
+        return lastWord;
+    }
 
-        return output.toString();
+    long bits() {
+        return bits;
     }
 
-}
+    long instructions() {
+        return instructions;
+    }
 
+    long lines() {
+        return lines;
+    }
 
-/* ======= Compression Strategies ======= */
+    int lastWord() {
+        return lastWord;
+    }
 
-interface CompressionStrategy {
-    int getEncodingLength();
-    CompressionResult compress(Dictionary dict, CompressionInput input, int inputToCompress);
-    void decompress(Dictionary dict, DecompressionOutputBuilder outputBuilder, String lineToDecompress);
+    /**
+     * @return whether RLE matched the last instruction start, whether or not it was the strategy used; the
+     *  next line can't then use RLE if it repeats lastWord()
+     */
+    boolean endsInRun() {
+        return runs.hasLastCompressed;
+    }
 }
 
-class OriginalBinaryEncodingStrategy implements CompressionStrategy {
+/**
+ * RangeDecoder decodes just a window of output lines from a BinaryFormat file. With a block index it starts
+ *  at the block holding the first wanted line, since blocks never start with RLE; without one it starts at the
+ *  beginning. Either way it stops as soon as the window is complete.
+ */
+final class RangeDecoder implements Closeable {
+    private final BinaryDecompressionInput input;
+    private final Dictionary dict;
+    private final DecodeEngine engine;
 
-    private static final int ENCODING_LEN = 32;
+    /**
+     * @param input the file to decode, closed along with the decoder
+     * @param dict the file's dictionary
+     * @param strategies the strategies for the file's layout
+     */
+    RangeDecoder(BinaryDecompressionInput input, Dictionary dict, List<CompressionStrategy> strategies) {
+        this.input = input;
+        this.dict = dict;
+        this.engine = new DecodeEngine(strategies, input.getLayout().formatBits());
+    }
 
-    @Override
-    public int getEncodingLength() {
-        return ENCODING_LEN;
+    /**
+     * Decodes output lines [fromLine, toLine) into output. Lines past the end of the file are simply not there.
+     */
+    void decode(long fromLine, long toLine, DecompressionOutput output) throws IOException {
+        if (fromLine >= toLine) {
+            return;
+        }
+        BlockIndex blocks = input.getBlockIndex();
+        final int block = blocks == null ? -1 : blocks.blockContaining(fromLine);
+        input.seek(block == -1 ? 0 : blocks.bitOffset(block));
+        WindowOutput window = new WindowOutput(block == -1 ? 0 : blocks.firstLine(block), fromLine, toLine, output);
+        engine.decodeWhile(input, dict, window, () -> window.line < toLine);
     }
 
     @Override
-    public CompressionResult compress(Dictionary dict, CompressionInput input, int inputToCompress) {
-        return new CompressionResult(input.getLine(inputToCompress), 1);
+    public void close() throws IOException {
+        input.close();
     }
 
-    @Override
-    public void decompress(Dictionary dict, DecompressionOutputBuilder outputBuilder, String lineToDecompress) {
-        outputBuilder.add(lineToDecompress);
+    /**
+     * Counts every decoded line but only passes on those inside the window.
+     */
+    private static final class WindowOutput implements DecompressionOutput {
+        private final long fromLine;
+        private final long toLine;
+        private final DecompressionOutput output;
+        private long line;
+        private int previous;
+        private boolean hasPrevious = false;
+
+        WindowOutput(long line, long fromLine, long toLine, DecompressionOutput output) {
+            this.line = line;
+            this.fromLine = fromLine;
+            this.toLine = toLine;
+            this.output = output;
+        }
+
+        @Override
+        public void add(int instruction) {
+            if (line >= fromLine && line < toLine) {
+                output.add(instruction);
+            }
+            ++line;
+            previous = instruction;
+            hasPrevious = true;
+        }
+
+        @Override
+        public int previousInstruction() {
+            if (!hasPrevious) {
+                throw new IllegalStateException("block starts with RLE, there is no previous instruction to repeat");
+            }
+            return previous;
+        }
     }
 }
 
-class RunLengthEncodingStrategy implements CompressionStrategy {
+/* ======= Output Builders ======= */
 
-    private static final int LEN_ENCODING = 3;
-    private static final int MAX_VAL = (int) (Math.pow(2, LEN_ENCODING) - 1);
+/**
+ * Anything the compressor can emit encoded instructions into.
+ */
+interface CompressionOutput {
+    void add(int format, int payload, int payloadBits);
+}
 
-    // used to ensure that RLE isn't used twice in a row!
-    private String lastCompressed = "";
+/**
+ * BitWriter packs fields into a long and hands them on groupBits bits (at most 32) at a time, most significant
+ *  first, so writing an instruction allocates nothing. What becomes of a full group is up to the GroupSink;
+ *  the last, partial group stays pending for the owner to pad out.
+ */
+final class BitWriter {
 
-    @Override
-    public CompressionResult compress(Dictionary dict, CompressionInput input, int inputToCompress) {
+    interface GroupSink {
+        void accept(int group);
+    }
 
-        // if the index is zero, it means we can't possibly look back! Return null meaning "can't compress"
-        if (inputToCompress == 0) {
-            lastCompressed = "";
-            return null;
-        }
-        // next we want to check if this encoding strategy even applies.
-        // to do that, we look back on the previous line and determine whether
-        //  it matches the current one we are trying to compress.
-        String currLine = input.getLine(inputToCompress);
-        String lastLine = input.getLine(inputToCompress - 1);
-        // let's go ahead and eliminate the case where the input does __not__ match.
-        if (!lastLine.equals(currLine)) {
-            // RLE doesn't apply, so...
-            lastCompressed = "";
-            return null;
+    private final int GROUP_BITS;
+    private final int GROUP_MASK;
+    private final GroupSink sink;
+
+    private long bits = 0;
+    private int bitCount = 0;
+    private long totalBits = 0;
+
+    BitWriter(int groupBits, GroupSink sink) {
+        if (groupBits < 1 || groupBits > Integer.SIZE) {
+            throw new IllegalArgumentException("groups must be 1 to " + Integer.SIZE + " bits wide");
         }
-        // to ensure that RLE isn't used twice in a row,
-        //  we need to check if the last value that was compressed is equal to the current one.
-        if (currLine.equals(lastCompressed)) {
-            lastCompressed = "";
-            return null;
-        } else {
-            lastCompressed = currLine;
+        this.GROUP_BITS = groupBits;
+        this.GROUP_MASK = (int) ((1L << groupBits) - 1);
+        this.sink = sink;
+    }
+
+    /**
+     * Appends the low numBits bits of value, most significant first.
+     */
+    void write(int value, int numBits) {
+        if (numBits < Integer.SIZE && (value >>> numBits) != 0) {
+            throw new IllegalArgumentException("num greater than bits can hold");
         }
-        // ok cool! We're almost there. Now for the fun stuff!
-        // we need to look __ahead__ and see if any future lines
-        //  can also be compressed. Isn't RLE fun?! :D
-        int lookAheadCount = 0;
-        int i = inputToCompress + 1;
-        while (i < input.size() && lookAheadCount < MAX_VAL) {
-            if (!input.getLine(i).equals(currLine)) {
-                break;
-            }
-            ++lookAheadCount;
-            ++i;
+        // fewer than GROUP_BITS are pending, so this never needs more than 63 bits
+        bits = (bits << numBits) | (value & 0xFFFFFFFFL);
+        bitCount += numBits;
+        totalBits += numBits;
+        while (bitCount >= GROUP_BITS) {
+            bitCount -= GROUP_BITS;
+            sink.accept((int) (bits >>> bitCount) & GROUP_MASK);
         }
-        // linesConsumes = lookAheadCount + 1 since this we must count the current line, too.
-        int linesConsumed = lookAheadCount + 1;
-        String output = Formatter.genBinaryString(lookAheadCount, LEN_ENCODING);
-        return new CompressionResult(output, linesConsumed);
     }
 
-    @Override
-    public void decompress(Dictionary dict, DecompressionOutputBuilder outputBuilder, String lineToDecompress) {
-        // parse the number of times to repeat (+1 due to zero indexing)
-        final int timesToRepeat = Integer.parseInt(lineToDecompress, 2) + 1;
-        // indexOf prev val to duplicate
-        String toDupe = outputBuilder.previousInstruction();
-        // remove item at index
-        for (int i = 0; i != timesToRepeat; ++i) {
-            outputBuilder.add(toDupe);
-        }
+    /**
+     * @return how many bits are waiting for their group to fill up
+     */
+    int pendingBits() {
+        return bitCount;
     }
 
-    @Override
-    public int getEncodingLength() {
-        return LEN_ENCODING;
+    /**
+     * @return the pending bits at the top of a group, the rest zero
+     */
+    int pendingGroup() {
+        return (int) (bits << (GROUP_BITS - bitCount)) & GROUP_MASK;
+    }
+
+    long totalBits() {
+        return totalBits;
     }
 }
 
-class DirectMatchEncodingStrategy implements CompressionStrategy {
+/**
+ * CompressionOutputBuilder keeps the compressed text in memory: instructions go through a BitWriter and come
+ *  out as OUTPUT_WIDTH wide lines of '0'/'1' bytes in a growable array, which toString() turns into the text
+ *  with the last line padded out with zeros.
+ */
+class CompressionOutputBuilder implements CompressionOutput {
+    private final int FORMAT_BITS;
+    private final int OUTPUT_WIDTH;
+    private final boolean DEBUG_OUT; // creates a line after every instruction instead of every OUTPUT_WIDTH bits
+    private final BitWriter writer;
 
-    private final int DICT_NUM_BITS;
+    // full lines so far, each followed by a newline
+    private byte[] text = new byte[1 << 12];
+    private int length = 0;
 
-    public DirectMatchEncodingStrategy(int dictNumBits) {
-        DICT_NUM_BITS = dictNumBits;
+    CompressionOutputBuilder(int formatBits, int outputWidth, boolean debugOut) {
+        this.FORMAT_BITS = formatBits;
+        this.OUTPUT_WIDTH = outputWidth;
+        this.DEBUG_OUT = debugOut;
+        this.writer = new BitWriter(outputWidth, this::appendLine);
     }
 
-    @Override
-    public int getEncodingLength() {
-        return DICT_NUM_BITS;
+    public void add(int format, int payload, int payloadBits) {
+        if (DEBUG_OUT) {
+            ensureCapacity(FORMAT_BITS + payloadBits + 1);
+            length = Formatter.writeBinary(format, FORMAT_BITS, text, length);
+            length = Formatter.writeBinary(payload, payloadBits, text, length);
+            text[length++] = '\n';
+        } else {
+            writer.write(format, FORMAT_BITS);
+            writer.write(payload, payloadBits);
+        }
     }
 
-    @Override
-    public CompressionResult compress(Dictionary dict, CompressionInput input, int inputToCompress) {
-        int dictIndex = dict.indexOf(input.getLine(inputToCompress));
-        if (dictIndex == -1) {
-            return null;
+    private void appendLine(int group) {
+        ensureCapacity(OUTPUT_WIDTH + 1);
+        length = Formatter.writeBinary(group, OUTPUT_WIDTH, text, length);
+        text[length++] = '\n';
+    }
+
+    private void ensureCapacity(int extra) {
+        if (text.length - length < extra) {
+            text = Arrays.copyOf(text, Math.max(text.length * 2, length + extra));
         }
-        String output = Formatter.genBinaryString(dictIndex, DICT_NUM_BITS);
-        return new CompressionResult(output);
     }
 
     @Override
-    public void decompress(Dictionary dict, DecompressionOutputBuilder outputBuilder, String lineToDecompress) {
-        outputBuilder.add(dict.getFromBinaryString(lineToDecompress));
+    public String toString() {
+        if (DEBUG_OUT || writer.pendingBits() == 0) {
+            // no newline after the last line
+            return new String(text, 0, Math.max(length - 1, 0), StandardCharsets.US_ASCII);
+        }
+        // the padded last line goes in the spare room after the text, so it can still grow afterwards
+        ensureCapacity(OUTPUT_WIDTH);
+        final int end = Formatter.writeBinary(writer.pendingGroup(), OUTPUT_WIDTH, text, length);
+        return new String(text, 0, end, StandardCharsets.US_ASCII);
     }
 }
 
-class BitmaskBasedEncodingStrategy implements CompressionStrategy {
-
-    private final int DICT_INDEX_SIZE;
-    private final int BITMASK_SIZE;
-    private final int STARTING_LOC_SIZE;
-
-    private final int DICT_INDEX_MAX_VAL;
-    private final int BITMASK_MAX_VAL;
-    private final int STARTING_LOC_MAX_VAL;
+/**
+ * A compressed file being written: instructions (or raw bits) go in, then the dictionary once they are done.
+ */
+interface CompressedFileOutput extends CompressionOutput, Closeable {
+    /**
+     * Appends the low numBits bits of value, most significant first.
+     */
+    void addBits(int value, int numBits);
 
-    public BitmaskBasedEncodingStrategy(int dictNumBits, int bitmaskSize, int startingLocSize) {
-        this.DICT_INDEX_SIZE = dictNumBits;
-        this.BITMASK_SIZE = bitmaskSize;
-        this.STARTING_LOC_SIZE = startingLocSize;
+    /**
+     * Ends the instructions and writes the dictionary.
+     * @param dict
+     */
+    void finish(Dictionary dict) throws IOException;
+}
 
-        DICT_INDEX_MAX_VAL = maxSizeForBin(DICT_INDEX_SIZE);
-        BITMASK_MAX_VAL = maxSizeForBin(BITMASK_SIZE);
-        STARTING_LOC_MAX_VAL = maxSizeForBin(STARTING_LOC_SIZE);
-    }
+/**
+ * StreamingCompressionOutput writes the same text CompressionOutputBuilder produces, but as instructions arrive:
+ *  every full OUTPUT_WIDTH bit line from the BitWriter is rendered into a reusable buffer, which goes out to
+ *  the channel whenever it fills up.
+ */
+class StreamingCompressionOutput implements CompressedFileOutput {
+    private static final int BUFFER_BYTES = 1 << 16;
 
-    private static int maxSizeForBin(int numBits) {
-        return (int) Math.pow(2, numBits) - 1;
+    private final WritableByteChannel channel;
+    private final int FORMAT_BITS;
+    private final int OUTPUT_WIDTH;
+    private final String DICTIONARY_SEPARATOR;
+    private final BitWriter writer;
+    private final byte[] buffer = new byte[BUFFER_BYTES];
+    private final ByteBuffer bufferView = ByteBuffer.wrap(buffer);
+    private int length = 0;
+
+    StreamingCompressionOutput(WritableByteChannel channel, int formatBits, int outputWidth, String dictSep) {
+        this.channel = channel;
+        this.FORMAT_BITS = formatBits;
+        this.OUTPUT_WIDTH = outputWidth;
+        this.DICTIONARY_SEPARATOR = dictSep;
+        this.writer = new BitWriter(outputWidth, this::writeLine);
     }
 
-    @Override
-    public int getEncodingLength() {
-        return DICT_INDEX_SIZE + BITMASK_SIZE + STARTING_LOC_SIZE;
+    static StreamingCompressionOutput create(String filename, int formatBits, int outputWidth, String dictSep) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(filename),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        return new StreamingCompressionOutput(channel, formatBits, outputWidth, dictSep);
     }
 
-    private String applyBitmask(String dictStr, int bitmask, int location) {
-        final String bitMaskStr = Formatter.genBinaryString(bitmask, BITMASK_SIZE);
-        // perform manipulation
-        char dictChars[] = dictStr.toCharArray();
-        char bitmaskChars[] = bitMaskStr.toCharArray();
-        for (int bitmaskI = 0; bitmaskI != BITMASK_SIZE; ++bitmaskI) {
-            final int dictI = bitmaskI + location;
-            // if the bitmask says to flip...
-            if (bitmaskChars[bitmaskI] == '1') {
-                // flip the bit in the opposite of what it currently is.
-                if (dictChars[dictI] == '1') {
-                    dictChars[dictI] = '0';
-                } else if (dictChars[dictI] == '0') {
-                    dictChars[dictI] = '1';
-                } else {
-                    throw new IllegalStateException("somehow we're dealing with more than ones and zeros");
-                }
+    /**
+     * Opens an existing file to carry on its stream. Its full lines stay as they are; the bits of a last, padded
+     *  line go back into the writer, and finish() writes everything from that line on again. As the stream only
+     *  grows, the file never has to shrink.
+     * @param streamBits the length of the file's stream, without padding
+     */
+    static StreamingCompressionOutput append(String filename, int formatBits, int outputWidth, String dictSep, long streamBits) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            final int lineBytes = outputWidth + 1;
+            final int pendingBits = (int) (streamBits % outputWidth);
+            final long position = streamBits / outputWidth * lineBytes;
+            // the last stream line, if it is partly padding, and the separator after it
+            final String expected = dictSep + "\n";
+            ByteBuffer tail = ByteBuffer.allocate((pendingBits == 0 ? 0 : lineBytes) + expected.length());
+            while (tail.hasRemaining() && channel.read(tail, position + tail.position()) > 0) {
+                // keep reading
+            }
+            String text = new String(tail.array(), 0, tail.position(), StandardCharsets.US_ASCII);
+            if (!text.endsWith(expected) || text.length() != tail.capacity()) {
+                throw new IllegalArgumentException("'" + filename + "' doesn't have " + outputWidth + " bit lines ended by LF, so it can't be appended to.");
             }
+            StreamingCompressionOutput output = new StreamingCompressionOutput(channel, formatBits, outputWidth, dictSep);
+            if (pendingBits != 0) {
+                output.addBits(Formatter.parseBinaryString(text.substring(0, pendingBits)), pendingBits);
+            }
+            channel.position(position);
+            return output;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
         }
-        // now let's check to see if the flip is a match
-        return new String(dictChars);
     }
 
     @Override
-    public CompressionResult compress(Dictionary dict, CompressionInput input, int inputToCompress) {
-        String toCompress = input.getLine(inputToCompress);
-        // let's brute force this bi'!
-        // for every dictionary entry...
-        for(int dictEntryI = 0; dictEntryI != dict.size(); ++dictEntryI) {
-            String dictStr = dict.get(dictEntryI);
-            // for every bitmask... (starting from the top to ensure that 1 is always at its leftmost position)
-            for (int bitmask = BITMASK_MAX_VAL; bitmask != 0; --bitmask) {
-                // for every possible starting location... (making sure to account for ones past the string)
-                for(int location = 0; location < (dictStr.length() - BITMASK_SIZE); ++location) {
-                    String flippedEntry = applyBitmask(dictStr, bitmask, location);
-                    if (flippedEntry.equals(toCompress)) {
-                        // WE'RE DONE!!!! WOOOOOOO... ok not really yet...
-                        // build up our string rep
-                        String bitRep =
-                                Formatter.genBinaryString(location, STARTING_LOC_SIZE) +
-                                        Formatter.genBinaryString(bitmask, BITMASK_SIZE) +
-                                        Formatter.genBinaryString(dictEntryI, DICT_INDEX_SIZE);
-
-                        return new CompressionResult(bitRep);
-                    }
-                }
-            }
-        }
-        return null;
+    public void add(int format, int payload, int payloadBits) {
+        writer.write(format, FORMAT_BITS);
+        writer.write(payload, payloadBits);
     }
 
     @Override
-    public void decompress(Dictionary dict, DecompressionOutputBuilder outputBuilder, String toDecomp) {
-        int start = 0;
-        String locationStr = toDecomp.substring(start, start+STARTING_LOC_SIZE);
-        start += STARTING_LOC_SIZE;
-        String bitmaskStr = toDecomp.substring(start, start+BITMASK_SIZE);
-        start += BITMASK_SIZE;
-        String dictIndexStr = toDecomp.substring(start, start+DICT_INDEX_SIZE);
-
-        int location = Integer.parseInt(locationStr, 2);
-        int bitmask = Integer.parseInt(bitmaskStr, 2);
-        int dictI = Integer.parseInt(dictIndexStr, 2);
-        String dictEntry = dict.get(dictI);
-        outputBuilder.add(applyBitmask(dictEntry, bitmask, location));
+    public void addBits(int value, int numBits) {
+        writer.write(value, numBits);
     }
-}
 
-class ConsecMismatchStrategy implements CompressionStrategy {
-
-    private final int NUM_MISMATCHES;
-    private static final int LEN_LOC = 5;
-    private static final int LEN_DICT = 4;
-
-    public ConsecMismatchStrategy(int numMismatches) {
-        this.NUM_MISMATCHES = numMismatches;
+    private void writeLine(int group) {
+        ensureRoom(OUTPUT_WIDTH + 1);
+        length = Formatter.writeBinary(group, OUTPUT_WIDTH, buffer, length);
+        buffer[length++] = '\n';
     }
 
-    @Override
-    public int getEncodingLength() {
-        return 9;
+    /**
+     * Writes a whole line of ASCII text.
+     */
+    private void writeText(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.US_ASCII);
+        ensureRoom(bytes.length + 1);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+        buffer[length++] = '\n';
     }
 
-    private String applyMismatch(int mismatchStart, String dictEntryStr) {
-        char[] dictEntry = dictEntryStr.toCharArray();
-        for (int i=0; i!=NUM_MISMATCHES; ++i) {
-            int currI = mismatchStart + i;
-            if (dictEntry[currI] == '1') {
-                dictEntry[currI] = '0';
-            } else if (dictEntry[currI] == '0') {
-                dictEntry[currI] = '1';
-            } else {
-                throw new IllegalStateException("somehow we're dealing with more than ones and zeros");
+    private void ensureRoom(int bytes) {
+        if (buffer.length - length < bytes) {
+            try {
+                flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
         }
-        return new String(dictEntry);
     }
 
+    private void flush() throws IOException {
+        bufferView.clear().limit(length);
+        while (bufferView.hasRemaining()) {
+            channel.write(bufferView);
+        }
+        length = 0;
+    }
+
+    /**
+     * Pads out the last line with zeros and appends the dictionary section, which for a shared dictionary is
+     *  just the reference to it.
+     * @param dict
+     */
     @Override
-    public CompressionResult compress(Dictionary dict, CompressionInput input, int inputToCompress) {
-        // string which we are attempting to match
-        final String toMatch = input.getLine(inputToCompress);
-        // every dictionary entry
-        for (int dictI = 0; dictI!=dict.size(); ++dictI) {
-            String dictEntry = dict.get(dictI);
-            // every mismatch loc
-            for (int mismatchStart=0; mismatchStart<(dictEntry.length() - NUM_MISMATCHES); ++mismatchStart) {
-                // apply mismatch
-                String generated = applyMismatch(mismatchStart, dictEntry);
-                if (toMatch.equals(generated)) {
-                    // we found a match!
-                    // build output
-                    String locStr = Formatter.genBinaryString(mismatchStart, LEN_LOC);
-                    String dictStr = Formatter.genBinaryString(dictI, LEN_DICT);
-                    return new CompressionResult(locStr + dictStr);
-                }
-            }
+    public void finish(Dictionary dict) throws IOException {
+        if (writer.pendingBits() != 0) {
+            writeLine(writer.pendingGroup());
         }
-        return null;
+        writeText(DICTIONARY_SEPARATOR);
+        if (dict.sharedId() != null) {
+            writeText(dict.toString());
+            flush();
+            return;
+        }
+        for (int i = 0; i != dict.size(); ++i) {
+            ensureRoom(Formatter.WORD_BITS + 1);
+            length = Formatter.writeBinary(dict.get(i), Formatter.WORD_BITS, buffer, length);
+            buffer[length++] = '\n';
+        }
+        flush();
     }
 
     @Override
-    public void decompress(Dictionary dict, DecompressionOutputBuilder outputBuilder, String toDecomp) {
-        int start = 0;
-        String locationStr = toDecomp.substring(start, start+LEN_LOC);
-        start += LEN_LOC;
-        String dictIndexStr = toDecomp.substring(start, start+LEN_DICT);
-        int location = Integer.parseInt(locationStr, 2);
-        int dictI = Integer.parseInt(dictIndexStr, 2);
-        outputBuilder.add(applyMismatch(location, dict.get(dictI)));
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
     }
 }
 
-class TwoBitAnywhereMismatchStrategy implements CompressionStrategy {
-
-    final static int LEN_MM = 5;
-    final static int LEN_DICT_I = 4;
+/**
+ * BinaryCompressionOutput writes a BinaryFormat file. A BitWriter gathers the bits and hands them over 32 at a
+ *  time into a reusable buffer; the header is written up front and patched with the real lengths at the end.
+ */
+class BinaryCompressionOutput implements CompressedFileOutput {
+    private final FileChannel channel;
+    private final CodecLayout layout;
+    private final int FORMAT_BITS;
+    private final BlockIndex blocks;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BinaryFormat.BUFFER_BYTES);
+    private final BitWriter writer = new BitWriter(Integer.SIZE, this::putInt);
+    // stream bits already in the file ahead of the writer's, when appending
+    private final long bitsBefore;
 
-    @Override
-    public int getEncodingLength() {
-        return LEN_MM * 2 + LEN_DICT_I;
+    /**
+     * @param blocks if not null, the block index the encoder fills in, written out after the dictionary
+     */
+    BinaryCompressionOutput(FileChannel channel, CodecLayout layout, BlockIndex blocks) throws IOException {
+        this(channel, layout, blocks, 0);
+        // placeholder header, filled in by finish()
+        channel.write(ByteBuffer.allocate(BinaryFormat.HEADER_BYTES), 0);
+        channel.position(BinaryFormat.HEADER_BYTES);
     }
 
-    private static String applyMismatch(String orig, int mm1, int mm2) {
-        char[] dictChars = orig.toCharArray();
-        // flip the bit in the opposite of what it currently is.
-        if (dictChars[mm1] == '1') {
-            dictChars[mm1] = '0';
-        } else if (dictChars[mm1] == '0') {
-            dictChars[mm1] = '1';
-        } else {
-            throw new IllegalStateException("somehow we're dealing with more than ones and zeros");
-        }
-        // flip the bit in the opposite of what it currently is.
-        if (dictChars[mm2] == '1') {
-            dictChars[mm2] = '0';
-        } else if (dictChars[mm2] == '0') {
-            dictChars[mm2] = '1';
-        } else {
-            throw new IllegalStateException("somehow we're dealing with more than ones and zeros");
-        }
-        return new String(dictChars);
+    private BinaryCompressionOutput(FileChannel channel, CodecLayout layout, BlockIndex blocks, long bitsBefore) {
+        this.channel = channel;
+        this.layout = layout;
+        this.FORMAT_BITS = layout.formatBits();
+        this.blocks = blocks;
+        this.bitsBefore = bitsBefore;
     }
 
-    @Override
-    public CompressionResult compress(Dictionary dict, CompressionInput input, int inputToCompress) {
-        final String toMatch = input.getLine(inputToCompress);
-        // for every dictionary entry
-        for(int dictEntryI = 0; dictEntryI != dict.size(); ++dictEntryI) {
-            String dictEntry = dict.get(dictEntryI);
-            // for every mm1
-            for(int mm1=0; mm1<dictEntry.length(); ++mm1) {
-                for(int mm2=0; mm2<dictEntry.length(); ++mm2) {
-                    // if they are the same skip
-                    if (mm1 == mm2) {
-                        continue;
-                    }
-                    String attempt = applyMismatch(dictEntry, mm1, mm2);
-                    if (attempt.equals(toMatch)) {
-                        String mm1Str = Formatter.genBinaryString(mm1, LEN_MM);
-                        String mm2Str = Formatter.genBinaryString(mm2, LEN_MM);
-                        String dictIStr = Formatter.genBinaryString(dictEntryI, LEN_DICT_I);
-                        return new CompressionResult(mm1Str + mm2Str + dictIStr);
-                    }
+    /**
+     * Opens an existing (version 2) file to carry on its stream. The stream's whole bytes stay as they are; the
+     *  bits of a last partial byte go back into the writer, and finish() writes everything after them again. As
+     *  the stream only grows, the file never has to shrink.
+     * @param blocks the file's block index, which the encoder carries on, or null
+     * @param streamBits the length of the file's stream
+     */
+    static BinaryCompressionOutput append(String filename, CodecLayout layout, BlockIndex blocks, long streamBits) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            final long wholeBytes = streamBits / Byte.SIZE;
+            final int pendingBits = (int) (streamBits % Byte.SIZE);
+            BinaryCompressionOutput output = new BinaryCompressionOutput(channel, layout, blocks, wholeBytes * Byte.SIZE);
+            if (pendingBits != 0) {
+                ByteBuffer last = ByteBuffer.allocate(1);
+                if (channel.read(last, BinaryFormat.HEADER_BYTES + wholeBytes) != 1) {
+                    throw new IllegalArgumentException("binary compressed file is truncated");
                 }
+                output.addBits((last.get(0) & 0xFF) >>> (Byte.SIZE - pendingBits), pendingBits);
             }
+            channel.position(BinaryFormat.HEADER_BYTES + wholeBytes);
+            return output;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
 
+    static BinaryCompressionOutput create(String filename, CodecLayout layout, BlockIndex blocks) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(filename),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            return new BinaryCompressionOutput(channel, layout, blocks);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
         }
-        return null;
     }
 
     @Override
-    public void decompress(Dictionary dict, DecompressionOutputBuilder outputBuilder, String toDecomp) {
-        int start = 0;
-        String mm1Str = toDecomp.substring(start, start+LEN_MM);
-        start += LEN_MM;
-        String mm2Str = toDecomp.substring(start, start+LEN_MM);
-        start += LEN_MM;
-        String dictIndexStr = toDecomp.substring(start, start+LEN_DICT_I);
-
-        int mm1 = Integer.parseInt(mm1Str, 2);
-        int mm2 = Integer.parseInt(mm2Str, 2);
-        int dictI = Integer.parseInt(dictIndexStr, 2);
-        String dictEntry = dict.get(dictI);
-        outputBuilder.add(applyMismatch(dictEntry, mm1, mm2));
+    public void add(int format, int payload, int payloadBits) {
+        addBits(format, FORMAT_BITS);
+        addBits(payload, payloadBits);
     }
-}
-
-/* ======= Helper Types ======= */
-
-class Dictionary {
-    private final int NUM_BITS;
-    private final List<String> instructions;
-
-    // arbitrarily large number to help with sorting
-    private static final int MAX_ENTRIES = 10000;
-
-    private static class InstructionEntry implements Comparable<InstructionEntry> {
-        private int index;
-        private String instruction;
-        private int count = 0;
 
+    @Override
+    public void addBits(int value, int numBits) {
+        writer.write(value, numBits);
+    }
 
-        public InstructionEntry(String instruction, int index) {
-            this.index = index;
-            this.instruction = instruction;
+    private void putInt(int group) {
+        if (buffer.remaining() < Integer.BYTES) {
+            flushBuffer();
         }
+        buffer.putInt(group);
+    }
 
-        public void incrementCount() {
-            ++count;
+    private void flushBuffer() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+        buffer.clear();
+    }
 
-        public int getIndex() {
-            return index;
+    @Override
+    public void finish(Dictionary dict) throws IOException {
+        // the pending bits, zero padded to a whole byte
+        final int pendingBytes = (writer.pendingBits() + Byte.SIZE - 1) / Byte.SIZE;
+        if (buffer.remaining() < pendingBytes) {
+            flushBuffer();
         }
-
-        public int getCount() {
-            return count;
+        for (int i = 0; i != pendingBytes; ++i) {
+            buffer.put((byte) (writer.pendingGroup() >>> (Integer.SIZE - Byte.SIZE * (i + 1))));
+        }
+        if (dict.sharedId() != null) {
+            if (buffer.remaining() < Long.BYTES) {
+                flushBuffer();
+            }
+            buffer.putLong(DictionaryStore.idBits(dict.sharedId()));
+        } else {
+            for (int i = 0; i != dict.size(); ++i) {
+                if (buffer.remaining() < Integer.BYTES) {
+                    flushBuffer();
+                }
+                buffer.putInt(dict.get(i));
+            }
+        }
+        if (blocks != null) {
+            if (buffer.remaining() < 2 * Integer.BYTES) {
+                flushBuffer();
+            }
+            buffer.putInt(blocks.size());
+            buffer.putInt(blocks.instructionsPerBlock());
+            for (int i = 0; i != blocks.size(); ++i) {
+                if (buffer.remaining() < 2 * Long.BYTES) {
+                    flushBuffer();
+                }
+                buffer.putLong(blocks.bitOffset(i));
+                buffer.putLong(blocks.firstLine(i));
+            }
         }
-
-        public String getInstruction() {
-            return instruction;
+        flushBuffer();
+
+        ByteBuffer header = ByteBuffer.allocate(BinaryFormat.HEADER_BYTES);
+        header.putInt(BinaryFormat.MAGIC);
+        header.put(BinaryFormat.VERSION);
+        header.put((byte) Formatter.WORD_BITS);
+        header.put((byte) FORMAT_BITS);
+        header.put((byte) ((blocks == null ? 0 : BinaryFormat.FLAG_BLOCK_INDEX)
+                | (dict.sharedId() == null ? 0 : BinaryFormat.FLAG_SHARED_DICTIONARY)));
+        header.putInt(dict.sharedId() == null ? dict.size() : 0);
+        header.putLong(bitsBefore + writer.totalBits());
+        header.putShort((short) layout.dictionarySize());
+        header.put((byte) layout.locationBits());
+        header.put((byte) 0);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
         }
+    }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
 
-            InstructionEntry that = (InstructionEntry) o;
+/**
+ * Anything decompression strategies can emit decoded words into. RLE needs to see the last word emitted.
+ */
+interface DecompressionOutput {
+    void add(int instruction);
+    int previousInstruction();
+}
 
-            if (index != that.index) return false;
-            if (count != that.count) return false;
-            return instruction.equals(that.instruction);
+/**
+ * StreamingDecompressionOutput writes every decoded word out as soon as it arrives, remembering only the
+ *  last one. The file is identical to what DecompressionOutputBuilder.toString() gives once written out.
+ */
+class StreamingDecompressionOutput implements DecompressionOutput, Closeable {
+    private final Writer writer;
+    private int previous;
+    private boolean hasPrevious = false;
 
-        }
+    StreamingDecompressionOutput(Writer writer) {
+        this.writer = writer;
+    }
 
-        @Override
-        public int hashCode() {
-            int result = index;
-            result = 31 * result + instruction.hashCode();
-            result = 31 * result + count;
-            return result;
+    @Override
+    public void add(int instruction) {
+        try {
+            writer.write(Formatter.genWordString(instruction));
+            writer.write('\n');
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+        previous = instruction;
+        hasPrevious = true;
+    }
 
-        @Override
-        public int compareTo(InstructionEntry o) {
-            // sort in DEscending order for the number of times the thing occured
-            int countDiff = (o.count - count) * MAX_ENTRIES;
-            // but in AScending order by index!
-            countDiff += (index - o.index);
-            return countDiff;
+    @Override
+    public int previousInstruction() {
+        if (!hasPrevious) {
+            throw new IllegalStateException("no previous instruction to repeat");
         }
+        return previous;
     }
 
     /**
-     * Constructor for when decompressing an already existing dictionary
-     * @param input
-     * @param numBits
+     * Writes the final newline of an empty output, matching writeToFile.
      */
-    public Dictionary(DecompressionInput input, int numBits) {
-        NUM_BITS = numBits;
-        if (input.rawDictSize() < 0 || input.rawDictSize() > (int) Math.pow(2, NUM_BITS)) {
-            throw new IllegalArgumentException("invalid dict size");
-        }
-        instructions = new ArrayList<>(input.rawDictSize());
-        for (int i = 0; i!=input.rawDictSize(); ++i) {
-            instructions.add(input.getRawDict(i));
+    public void finish() throws IOException {
+        if (!hasPrevious) {
+            writer.write('\n');
         }
     }
 
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
+
+class DecompressionOutputBuilder implements DecompressionOutput {
+    private final IntList instructions = new IntList();
+    @Override
+    public void add(int instruction) {
+        instructions.add(instruction);
+    }
+    @Override
+    public int previousInstruction() {
+        return instructions.get(instructions.size()-1);
+    }
+
     /**
-     * Constructor for when compressing an input file
-     * @param input
-     * @param dictionarySize
+     * @return a copy of every instruction added so far
      */
-    public Dictionary(CompressionInput input, int numBits, int dictionarySize) {
-        NUM_BITS = numBits;
-        if (dictionarySize < 0 || dictionarySize > (int) Math.pow(2, NUM_BITS)) {
-            throw new IllegalArgumentException("invalid dict size");
-        }
-        List <InstructionEntry> instructionEntries = sortInput(input);
-        instructions = trimToSize(instructionEntries, dictionarySize);
+    int[] toArray() {
+        return instructions.toArray();
     }
 
-    private static List<InstructionEntry> sortInput(CompressionInput input) {
-        Map<String, InstructionEntry> map = new HashMap<>();
-        // indexOf the count of all lines
-        for(int i = 0; i!=input.size(); ++i) {
-            final String line = input.getLine(i);
-            InstructionEntry entry = map.get(line);
-            if (entry == null) {
-                // if the line is new, create a new IE and put it in.
-                map.put(line, new InstructionEntry(line, i));
-            } else {
-                // otherwise, we just increment the count!
-                entry.incrementCount();
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i != instructions.size(); ++i) {
+            if (i > 0) {
+                sb.append("\n");
             }
+            sb.append(Formatter.genWordString(instructions.get(i)));
         }
-
-        // sort the lines by their count
-        List<InstructionEntry> instructionEntries = new ArrayList<>(map.values());
-        Collections.sort(instructionEntries);
-        return instructionEntries;
-    }
-    private static List<String> trimToSize(List<InstructionEntry> ieList, int size) {
-        List<String> instructions = new ArrayList<>(size);
-        for (int i=0; i!=size && i!=ieList.size(); ++i) {
-            instructions.add(ieList.get(i).getInstruction());
-        }
-        return instructions;
+        return sb.toString();
     }
+}
 
-    public int size() {
-        return instructions.size();
-    }
+/* ======= Service ======= */
+
+/**
+ * CompressionService runs compression and decompression jobs in one long-lived JVM, so a pipeline with many small
+ *  files pays for startup and JIT warm-up once instead of per file. Clients connect to a Unix domain socket and
+ *  send one job per line: the directory to run in, then the usual command line arguments, all separated by tabs:
+ *
+ *      /data/trace-17 \t 1 \t --binary
+ *
+ *  Jobs run on a fixed pool of workers, several at once even from one connection, and each is answered with one
+ *  line as it finishes, so possibly out of order: "ok \t dir", "ok \t dir \t result" for a job that reports
+ *  something (the id a train job saved its dictionary under), or "error \t dir \t message". At most
+ *  PENDING_PER_WORKER jobs per worker are accepted and unfinished at a time; past that the service stops reading,
+ *  and clients feel the back-pressure through the socket. A connection closes once the client has closed its
+ *  side and every job it sent has been answered.
+ */
+final class CompressionService implements Closeable {
+    static final int PENDING_PER_WORKER = 4;
 
     /**
-     * Get returns the specified instruction index.
-     * @param instruction
-     * @return index, or -1 if DNE
+     * JobRunner runs one job from its directory and arguments, throwing if it fails.
      */
-    public int indexOf(String instruction) {
-        return instructions.indexOf(instruction);
+    interface JobRunner {
+        /**
+         * @return what the job reports besides its files, or null
+         */
+        String run(Path dir, String[] args) throws Exception;
     }
 
-    public String get(int i) {
-        return instructions.get(i);
+    private final Path socket;
+    private final ServerSocketChannel server;
+    private final JobRunner runner;
+    private final ExecutorService workers;
+    private final ExecutorService connections = Executors.newCachedThreadPool();
+    private final Semaphore pending;
+
+    /**
+     * Binds the socket, replacing a stale socket file left by an earlier service.
+     */
+    CompressionService(Path socket, int workers, JobRunner runner) throws IOException {
+        Files.deleteIfExists(socket);
+        this.socket = socket;
+        this.server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        this.server.bind(UnixDomainSocketAddress.of(socket));
+        this.runner = runner;
+        this.workers = Executors.newFixedThreadPool(workers);
+        this.pending = new Semaphore(workers * PENDING_PER_WORKER);
     }
 
-    public String getFromBinaryString(String binaryString) {
-        if (binaryString.length() != NUM_BITS) {
-            throw new IllegalArgumentException("binaryString is of incorrect size");
+    /**
+     * Accepts connections until the service is closed.
+     */
+    void serve() throws IOException {
+        try {
+            while (true) {
+                SocketChannel client = server.accept();
+                connections.execute(() -> handle(client));
+            }
+        } catch (ClosedChannelException e) {
+            // closed, so we're done
         }
-        int index = Integer.parseInt(binaryString, 2);
-        return get(index);
     }
 
-    @Override
-    public String toString() {
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i!=size(); ++i) {
-            if (i > 0) {
-                sb.append("\n");
+    private void handle(SocketChannel client) {
+        // the reader is one party, each job in flight another, so the reader can wait for the last reply
+        Phaser inFlight = new Phaser(1);
+        try (SocketChannel channel = client;
+             BufferedReader in = new BufferedReader(new InputStreamReader(inputOf(channel), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                final String[] fields = line.split("\t");
+                pending.acquire();
+                inFlight.register();
+                try {
+                    workers.execute(() -> {
+                        try {
+                            reply(channel, run(fields));
+                        } finally {
+                            pending.release();
+                            inFlight.arriveAndDeregister();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    pending.release();
+                    inFlight.arriveAndDeregister();
+                    throw e;
+                }
             }
-            sb.append(instructions.get(i));
+            inFlight.arriveAndAwaitAdvance();
+        } catch (IOException | InterruptedException | RejectedExecutionException e) {
+            // the client went away or the service is closing; either way nobody is left to answer
         }
-        return sb.toString();
     }
-}
 
-class Formatter {
     /**
-     * Generates a binary string with the specified number of bits
-     * @param num
-     * @param numBits
-     * @return
+     * @return the reply line for the job in fields
      */
-    public static String genBinaryString(int num, int numBits) {
-        String raw = Integer.toBinaryString(num);
-        if (raw.length() > numBits) {
-            throw new IllegalArgumentException("num greater than bits can hold");
-        } else if (raw.length() == numBits) {
-            return raw;
+    private String run(String[] fields) {
+        final String dir = fields[0];
+        try {
+            final String result = runner.run(Paths.get(dir), Arrays.copyOfRange(fields, 1, fields.length));
+            return result == null ? "ok\t" + dir : "ok\t" + dir + "\t" + result;
+        } catch (Exception e) {
+            // bad arguments explain themselves; anything else needs its type, e.g. NoSuchFileException: path
+            final String message = e instanceof IllegalArgumentException ? e.getMessage() : e.toString();
+            return "error\t" + dir + "\t" + message.replace('\n', ' ');
         }
-        StringBuilder sb = new StringBuilder(numBits);
-        int zerosNeeded = numBits - raw.length();
-        for (int i=0; i!=zerosNeeded; ++i) {
-            sb.append("0");
+    }
+
+    private static void reply(SocketChannel channel, String line) {
+        ByteBuffer bytes = StandardCharsets.UTF_8.encode(line + "\n");
+        // replies come from several workers, and each has to go out whole
+        synchronized (channel) {
+            try {
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+            } catch (IOException e) {
+                // the client went away, so there's nobody to tell
+            }
         }
-        sb.append(raw);
-        return sb.toString();
     }
-}
 
-class CompressionResult {
-    private int linesConsumed;
-    private String compressedLine;
+    /**
+     * @return a stream reading the channel directly. Channels.newInputStream would hold the channel's blocking
+     *  lock while waiting for input, which blocks the replies going out on the same channel.
+     */
+    private static InputStream inputOf(ReadableByteChannel channel) {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+            }
 
-    public CompressionResult(String compressedLine) {
-        this(compressedLine, 1);
-    }
-    public CompressionResult(String compressedLine, int linesConsumed) {
-        this.linesConsumed = linesConsumed;
-        this.compressedLine = compressedLine;
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return len == 0 ? 0 : channel.read(ByteBuffer.wrap(b, off, len));
+            }
+        };
     }
 
-    public int getLinesConsumed() {
-        return linesConsumed;
-    }
-    public String getCompressedLine() {
-        return compressedLine;
+    /**
+     * Stops accepting jobs, lets the running ones finish and removes the socket file.
+     */
+    @Override
+    public void close() {
+        try {
+            server.close();
+            Files.deleteIfExists(socket);
+        } catch (IOException e) {
+            // nothing more to clean up
+        }
+        connections.shutdownNow();
+        workers.shutdown();
+        try {
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 }
 
-/* ======= Input Helpers ======= */
+/* ======= Metrics ======= */
 
 /**
- * CompressionInput is a utility class that represents a file that has
- *  been normalized into an array of lines.
+ * CodecMetrics records what one compression or decompression run did. Per format it tracks how often the
+ *  strategy was tried, how often it matched and the time spent in it (compression only), and the instructions
+ *  and bits that went out (or came in) with it. It also tracks lines and elapsed time, for throughput.
+ *
+ *  With --decision-cache it also sums the hits, misses and evictions of every cache the run made.
+ *
+ *  Runs pay for this only with --metrics; otherwise the metrics are null and no timing or counting code runs.
+ *  Only the thread running the codec loop writes the counts (and the caches their own), so the values JMX reads
+ *  mid-run may be slightly stale. summary() renders the final counts as JSON.
  */
-class CompressionInput implements Iterable<String> {
+final class CodecMetrics implements DynamicMBean {
 
-    private List<String> lines;
-    public CompressionInput(String filename) throws IOException {
-        lines = Files.readAllLines(Paths.get(filename));
-        // if there is an extra line, let's remove it.
-        if (lines.get(lines.size()-1).equals("")) {
-            lines.remove(lines.size() - 1);
+    private final String operation;
+    private final String[] strategyNames;
+    private final boolean[] dictionaryFormats;
+
+    private final long[] attempts;
+    private final long[] matches;
+    private final long[] nanos;
+    private final long[] instructions;
+    private final long[] bits;
+    private long decisionProbes = 0;
+    private long decisionNanos = 0;
+    private long lines = 0;
+    // with --parallel the caches are made on the pool's threads
+    private final List<DecisionCache> caches = Collections.synchronizedList(new ArrayList<>());
+
+    private long startNanos = 0;
+    private long endNanos = 0;
+
+    private static final AtomicLong RUNS = new AtomicLong();
+
+    private ObjectName registeredName;
+
+    /**
+     * @param operation what is being measured, e.g. "compress"
+     * @param strategies the strategies by format
+     */
+    CodecMetrics(String operation, List<CompressionStrategy> strategies) {
+        this.operation = operation;
+        strategyNames = new String[strategies.size()];
+        dictionaryFormats = new boolean[strategies.size()];
+        for (int format = 0; format != strategies.size(); ++format) {
+            strategyNames[format] = strategies.get(format).getClass().getSimpleName();
+            dictionaryFormats[format] = EncodingDecision.isDictionaryStrategy(strategies.get(format));
         }
+        attempts = new long[strategies.size()];
+        matches = new long[strategies.size()];
+        nanos = new long[strategies.size()];
+        instructions = new long[strategies.size()];
+        bits = new long[strategies.size()];
     }
 
-    public String getLine(int line) {
-        return lines.get(line);
+    void attempted(int format, boolean matched, long elapsedNanos) {
+        ++attempts[format];
+        if (matched) {
+            ++matches[format];
+        }
+        nanos[format] += elapsedNanos;
     }
 
-    public int size() {
-        return lines.size();
+    void probedDecisions(long elapsedNanos) {
+        ++decisionProbes;
+        decisionNanos += elapsedNanos;
     }
 
-    @Override
-    public Iterator<String> iterator() {
-        return new Iterator<String> () {
+    /**
+     * @param format
+     * @param instructionBits the whole instruction, format field included
+     */
+    void instruction(int format, int instructionBits) {
+        ++instructions[format];
+        bits[format] += instructionBits;
+    }
 
-            private final Iterator<String> iter = lines.iterator();
+    void addLines(long count) {
+        lines += count;
+    }
 
-            @Override
-            public boolean hasNext() {
-                return iter.hasNext();
-            }
+    /**
+     * Counts cache's hits, misses and evictions in, as they are when the metrics are read.
+     */
+    void addCache(DecisionCache cache) {
+        caches.add(cache);
+    }
 
-            @Override
-            public String next() {
-                return iter.next();
+    /**
+     * @return the caches' hits, misses and evictions, summed
+     */
+    private long[] cacheCounts() {
+        long[] counts = new long[3];
+        synchronized (caches) {
+            for (DecisionCache cache : caches) {
+                counts[0] += cache.getHits();
+                counts[1] += cache.getMisses();
+                counts[2] += cache.getEvictions();
             }
+        }
+        return counts;
+    }
+
+    /**
+     * @return output that counts every instruction added to it before passing it on
+     */
+    CompressionOutput counting(CompressionOutput output, int formatBits) {
+        return (format, payload, payloadBits) -> {
+            instruction(format, formatBits + payloadBits);
+            output.add(format, payload, payloadBits);
         };
     }
-}
 
-/**
- * DecompressionInput is a utility class that takes in a decompression output
- *  and automatically segments it by instruction.
- */
-class DecompressionInput {
-    private final List<String> dictList;
-    private List<String> compressedInstructions;
-    private List<Integer> formatInts;
+    /**
+     * @return output that counts every line added to it before passing it on
+     */
+    DecompressionOutput counting(DecompressionOutput output) {
+        return new DecompressionOutput() {
+            @Override
+            public void add(int instruction) {
+                ++lines;
+                output.add(instruction);
+            }
 
-    public DecompressionInput(List<String> compressedLines, List<CompressionStrategy> strategies, String dictSep, int formatBits) {
-        // now it's time to concat those lines into a single string
-        StringBuilder giantString = new StringBuilder();
-        // will represent the starting index of the dict index
-        int dictIndex = 0;
-        // run the concat loop until we hit the dictionary
-        for (String line : compressedLines) {
-            if (line.equals(dictSep)) {
-                break;
+            @Override
+            public int previousInstruction() {
+                return output.previousInstruction();
             }
-            giantString.append(line);
-            ++dictIndex;
-        }
-        // go ahead and assign the dict since we are done with processing it
-        // the dictionary starts one past the separator, which is why we add one.
-        dictList = compressedLines.subList(dictIndex + 1, compressedLines.size());
-        separateInstructions(strategies, giantString.toString(), formatBits);
+        };
     }
 
-    public DecompressionInput(String filename, List<CompressionStrategy> strategies, String dictSep, int formatBits) throws IOException {
-        this(Files.readAllLines(Paths.get(filename)), strategies, dictSep, formatBits);
+    /**
+     * Starts the clock.
+     */
+    void start() {
+        startNanos = System.nanoTime();
     }
 
-    public String getRawDict(int i) {
-        return dictList.get(i);
+    /**
+     * Stops the clock.
+     */
+    void finish() {
+        endNanos = System.nanoTime();
     }
 
-    public int rawDictSize() {
-        return dictList.size();
+    /**
+     * Makes the metrics readable over JMX (as SIM:type=CodecMetrics,operation=...) until unregister().
+     */
+    void register() {
+        try {
+            // several runs can be registered at once in the service, so each gets its own name
+            registeredName = new ObjectName("SIM:type=CodecMetrics,operation=" + operation + ",run=" + RUNS.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, registeredName);
+        } catch (JMException e) {
+            throw new IllegalStateException("could not register the metrics with JMX", e);
+        }
     }
 
-    public String getCmpdInstruction(int i) {
-        return compressedInstructions.get(i);
+    void unregister() {
+        if (registeredName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        } catch (JMException e) {
+            throw new IllegalStateException("could not unregister the metrics from JMX", e);
+        }
+        registeredName = null;
     }
 
-    public int getCmpdFormat(int i) {
-        return formatInts.get(i);
+    private long elapsedNanos() {
+        if (startNanos == 0) {
+            return 0;
+        }
+        return (endNanos == 0 ? System.nanoTime() : endNanos) - startNanos;
     }
 
-    public int cmpdInstrucionSize() {
-        return compressedInstructions.size();
+    private long totalInstructions() {
+        long total = 0;
+        for (long count : instructions) {
+            total += count;
+        }
+        return total;
     }
 
-    private void separateInstructions(List<CompressionStrategy> strategies, String compdText, int formatBits) {
-        // List to hold separated compressed instructions.
-        compressedInstructions = new ArrayList<>();
-        formatInts = new ArrayList<>();
-        // holds current position in giganto string
-        int currPos = 0;
+    private long totalBits() {
+        long total = 0;
+        for (long count : bits) {
+            total += count;
+        }
+        return total;
+    }
 
-        while (currPos + formatBits < compdText.length()) {
-            // parse the bits (in binary) needed for this section
-            String formatStr = compdText.substring(currPos, currPos + formatBits);
-            final int format = Integer.parseInt(formatStr, 2);
-            currPos += formatBits;
-            // since the strategy orders are 1 to 1 with the format
-            CompressionStrategy strategy = strategies.get(format);
-            // indexOf the length of the encoding so we can separate it properly
-            // DEBUG
-            if (strategy == null) {
-                System.out.println("DEBUG");
-            }
-            // END DEBUG
-            final int encodingLen = strategy.getEncodingLength();
-            // make sure that the encoding len is in bounds
-            // (can happen due to padding)
-            if (currPos + encodingLen > compdText.length()) {
-                // since padding should only be zeros, there is something wrong if the format is
-                // not.
-                if (format != 0) {
-                    throw new IllegalStateException("unexpected nonzero format during padding processing");
-                }
-                break;
+    /**
+     * Lines encoded by a dictionary strategy (one line per instruction), as a fraction of all lines.
+     */
+    private double dictionaryHitRate() {
+        long dictionaryLines = 0;
+        for (int format = 0; format != instructions.length; ++format) {
+            if (dictionaryFormats[format]) {
+                dictionaryLines += instructions[format];
             }
-            String cmpdInstruction = compdText.substring(currPos, currPos + encodingLen);
-            compressedInstructions.add(cmpdInstruction);
-            formatInts.add(format);
-            currPos += encodingLen;
         }
+        return lines == 0 ? 0 : (double) dictionaryLines / lines;
     }
-}
 
-/* ======= Output Builders ======= */
+    private double linesPerSecond() {
+        final long elapsed = elapsedNanos();
+        return elapsed == 0 ? 0 : lines * 1e9 / elapsed;
+    }
 
-class CompressionOutputBuilder {
-    //private List<String> uncompressedInstructions = new LinkedList<>();
-    private final List<String> compressedInstructions = new LinkedList<>();
-    private final int FORMAT_BITS;
-    private final int OUTPUT_WIDTH;
-    private final boolean DEBUG_OUT; // creates a line after every instruction instead of every OUTPUT_WIDTH bits
+    /**
+     * @return every count by name, per format ones as FormatNCount, which is what JMX shows
+     */
+    private Map<String, Number> attributes() {
+        Map<String, Number> attributes = new LinkedHashMap<>();
+        attributes.put("Lines", lines);
+        attributes.put("Instructions", totalInstructions());
+        attributes.put("InstructionBits", totalBits());
+        attributes.put("BitsSaved", lines * Formatter.WORD_BITS - totalBits());
+        attributes.put("DictionaryHitRate", dictionaryHitRate());
+        attributes.put("ElapsedNanos", elapsedNanos());
+        attributes.put("LinesPerSecond", linesPerSecond());
+        attributes.put("DecisionProbes", decisionProbes);
+        attributes.put("DecisionNanos", decisionNanos);
+        final long[] cacheCounts = cacheCounts();
+        attributes.put("DecisionCacheHits", cacheCounts[0]);
+        attributes.put("DecisionCacheMisses", cacheCounts[1]);
+        attributes.put("DecisionCacheEvictions", cacheCounts[2]);
+        for (int format = 0; format != strategyNames.length; ++format) {
+            attributes.put("Format" + format + "Attempts", attempts[format]);
+            attributes.put("Format" + format + "Matches", matches[format]);
+            attributes.put("Format" + format + "Nanos", nanos[format]);
+            attributes.put("Format" + format + "Instructions", instructions[format]);
+            attributes.put("Format" + format + "Bits", bits[format]);
+        }
+        return attributes;
+    }
 
-    CompressionOutputBuilder(int formatBits, int outputWidth, boolean debugOut) {
-        this.FORMAT_BITS = formatBits;
-        this.OUTPUT_WIDTH = outputWidth;
-        this.DEBUG_OUT = debugOut;
+    /**
+     * @return the counts as a JSON object, one line per field
+     */
+    String summary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"operation\": \"").append(operation).append("\",\n");
+        sb.append("  \"lines\": ").append(lines).append(",\n");
+        sb.append("  \"instructions\": ").append(totalInstructions()).append(",\n");
+        sb.append("  \"instructionBits\": ").append(totalBits()).append(",\n");
+        sb.append("  \"bitsSaved\": ").append(lines * Formatter.WORD_BITS - totalBits()).append(",\n");
+        sb.append("  \"dictionaryHitRate\": ").append(dictionaryHitRate()).append(",\n");
+        sb.append("  \"elapsedNanos\": ").append(elapsedNanos()).append(",\n");
+        sb.append("  \"linesPerSecond\": ").append(linesPerSecond()).append(",\n");
+        sb.append("  \"decisionSource\": {\"probes\": ").append(decisionProbes).append(", \"nanos\": ").append(decisionNanos).append("},\n");
+        if (!caches.isEmpty()) {
+            final long[] cacheCounts = cacheCounts();
+            sb.append("  \"decisionCache\": {\"hits\": ").append(cacheCounts[0]).append(", \"misses\": ").append(cacheCounts[1])
+                    .append(", \"evictions\": ").append(cacheCounts[2]).append("},\n");
+        }
+        sb.append("  \"formats\": [\n");
+        for (int format = 0; format != strategyNames.length; ++format) {
+            sb.append("    {\"format\": ").append(format)
+                    .append(", \"strategy\": \"").append(strategyNames[format]).append('"')
+                    .append(", \"attempts\": ").append(attempts[format])
+                    .append(", \"matches\": ").append(matches[format])
+                    .append(", \"nanos\": ").append(nanos[format])
+                    .append(", \"instructions\": ").append(instructions[format])
+                    .append(", \"bits\": ").append(bits[format])
+                    .append(format + 1 == strategyNames.length ? "}\n" : "},\n");
+        }
+        sb.append("  ]\n");
+        sb.append("}");
+        return sb.toString();
     }
-    public void add(int format, String compressedLine) {
-        String toAdd = Formatter.genBinaryString(format, FORMAT_BITS) + compressedLine;
-        compressedInstructions.add(toAdd);
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = attributes().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException("no metric named " + attribute);
+        }
+        return value;
     }
 
     @Override
-    public String toString() {
-        StringBuilder sb = new StringBuilder();
-        if (DEBUG_OUT) {
-            for (String instruction : compressedInstructions) {
-                sb.append(instruction);
-                sb.append("\n");
+    public AttributeList getAttributes(String[] names) {
+        Map<String, Number> attributes = attributes();
+        AttributeList list = new AttributeList();
+        for (String name : names) {
+            if (attributes.containsKey(name)) {
+                list.add(new Attribute(name, attributes.get(name)));
             }
-        } else {
-            // will hold giant list of the instructions with no spacing
-            StringBuilder temp = new StringBuilder();
-            for (String instruction : compressedInstructions) {
-                temp.append(instruction);
-            }
-            // now split by OUTPUT_WIDTH
-            int index = 0;
-            while (index < temp.length()) {
-                sb.append(temp.substring(index, Math.min(index + OUTPUT_WIDTH,temp.length())));
-                sb.append("\n");
-                index += OUTPUT_WIDTH;
-            }
-            // append some extra zeros!
-            sb.deleteCharAt(sb.length()-1);
-            while (sb.length()% (OUTPUT_WIDTH+1) != OUTPUT_WIDTH)
-                sb.append("0");
-            sb.append("\n");
         }
-        // remove the extraneous newlines made in each loop
-        sb.deleteCharAt(sb.length()-1);
-        return sb.toString();
+        return list;
     }
-}
 
-class DecompressionOutputBuilder {
-    List<String> instructions = new LinkedList<>();
-    public void add(String instruction) {
-        instructions.add(instruction);
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("metrics are read only");
     }
-    public String previousInstruction() {
-        return instructions.get(instructions.size()-1);
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        // read only, so nothing gets set
+        return new AttributeList();
     }
 
     @Override
-    public String toString() {
-        StringBuilder sb = new StringBuilder();
-        boolean first = true;
-        for(String instruction : instructions) {
-            if (first) {
-                first = false;
-            } else {
-                sb.append("\n");
-            }
-            sb.append(instruction);
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName), "metrics have no operations");
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> infos = new ArrayList<>();
+        for (Map.Entry<String, Number> attribute : attributes().entrySet()) {
+            infos.add(new MBeanAttributeInfo(attribute.getKey(), attribute.getValue().getClass().getName(), attribute.getKey(), true, false, false));
         }
-        return sb.toString();
+        return new MBeanInfo(getClass().getName(), "SIM " + operation + " metrics, strategies by format: " + String.join(", ", strategyNames),
+                infos.toArray(new MBeanAttributeInfo[0]), null, null, null);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,89 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+/**
+ * A file built up piece by piece with --append has to decode to all the pieces in order, for text and --binary
+ *  files, with and without a --block index.
+ */
+class AppendTest {
+
+    static Stream<Arguments> tracesAndFormats() {
+        List<String> formats = List.of("", "--binary", "--binary --block=16");
+        return Traces.NAMES.stream().flatMap(trace -> formats.stream().map(flag -> Arguments.of(trace, flag)));
+    }
+
+    @ParameterizedTest
+    @MethodSource("tracesAndFormats")
+    void piecesDecodeInOrder(String trace, String format, @TempDir Path dir) throws IOException {
+        List<String> original = Traces.lines(trace);
+        final boolean binary = format.startsWith("--binary");
+        // uneven pieces, so the joins fall in different places of runs and output lines
+        int[] cuts = {0, original.size() / 7, original.size() / 2, original.size() / 2 + 1, original.size()};
+        for (int piece = 0; piece + 1 != cuts.length; ++piece) {
+            Files.write(dir.resolve("original.txt"), original.subList(cuts[piece], cuts[piece + 1]), StandardCharsets.US_ASCII);
+            if (piece == 0) {
+                Jobs.run(dir, "1", format);
+            } else {
+                Jobs.run(dir, "1", "--append", binary ? "--binary" : "");
+            }
+        }
+        Jobs.copyCompressed(dir, binary);
+        Jobs.run(dir, "2", binary ? "--binary" : "");
+        assertEquals(original, Jobs.decompressed(dir));
+    }
+
+    @ParameterizedTest
+    @MethodSource("tracesAndFormats")
+    void sharedDictionaryJoinsMatchOnePass(String trace, String format, @TempDir Path dir) throws IOException {
+        List<String> original = Traces.lines(trace);
+        final boolean binary = format.startsWith("--binary");
+        Traces.copy(trace, "original.txt", dir, "original.txt");
+        final String id = Jobs.run(dir, "6");
+        Jobs.run(dir, "1", format, "--shared-dictionary=" + id);
+        final byte[] onePass = Files.readAllBytes(dir.resolve(binary ? "cout.bin" : "cout.txt"));
+
+        // three pieces, joined between different words so no run of repeats is split
+        List<Integer> cuts = new ArrayList<>(List.of(0));
+        for (int third = 1; third != 3; ++third) {
+            int cut = original.size() * third / 3;
+            while (original.get(cut).equals(original.get(cut - 1))) {
+                ++cut;
+            }
+            cuts.add(cut);
+        }
+        cuts.add(original.size());
+        for (int piece = 0; piece + 1 != cuts.size(); ++piece) {
+            Files.write(dir.resolve("original.txt"), original.subList(cuts.get(piece), cuts.get(piece + 1)), StandardCharsets.US_ASCII);
+            if (piece == 0) {
+                Jobs.run(dir, "1", format, "--shared-dictionary=" + id);
+            } else {
+                Jobs.run(dir, "1", "--append", binary ? "--binary" : "");
+            }
+        }
+        assertArrayEquals(onePass, Files.readAllBytes(dir.resolve(binary ? "cout.bin" : "cout.txt")));
+    }
+
+    @Test
+    void appendWithWholeFileOptionsIsRejected(@TempDir Path dir) throws IOException {
+        Jobs.compress("loop", dir, "");
+        for (String flag : List.of("--stream", "--optimal", "--parallel=4")) {
+            assertThrows(IllegalArgumentException.class, () -> Jobs.run(dir, "1", "--append", flag), flag);
+        }
+        assertEquals(Traces.text("loop", "cout.txt"), Jobs.compressedText(dir));
+    }
+}
@@ -0,0 +1,47 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+/**
+ * A --binary file holds the same bit stream and dictionary as the text one, so converting between the two has
+ *  to give back the baseline compressor's cout.txt, and decoding either has to give back the input.
+ */
+class BinaryFormatTest {
+
+    static Stream<String> traces() {
+        return Traces.NAMES.stream();
+    }
+
+    @ParameterizedTest
+    @MethodSource("traces")
+    void compressionConvertsToBaseline(String trace, @TempDir Path dir) throws IOException {
+        Jobs.compress(trace, dir, "--binary");
+        Jobs.run(dir, "4");
+        assertEquals(Traces.text(trace, "cout.txt"), compressedText(dir));
+    }
+
+    @ParameterizedTest
+    @MethodSource("traces")
+    void baselineConvertsToBinaryAndBack(String trace, @TempDir Path dir) throws IOException {
+        Traces.copy(trace, "cout.txt", dir, "compressed.txt");
+        Jobs.run(dir, "3");
+        Jobs.run(dir, "2", "--binary");
+        assertEquals(Traces.lines(trace), Jobs.decompressed(dir));
+
+        Files.delete(dir.resolve("compressed.txt"));
+        Jobs.run(dir, "4");
+        assertEquals(Traces.text(trace, "cout.txt"), compressedText(dir));
+    }
+
+    private static String compressedText(Path dir) throws IOException {
+        return Files.readString(dir.resolve("compressed.txt"), StandardCharsets.US_ASCII);
+    }
+}
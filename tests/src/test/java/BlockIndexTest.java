@@ -0,0 +1,50 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+/**
+ * Decompressing --lines of a --binary file has to give exactly those lines of the input, whether the file has a
+ *  --block index to start from or has to be decoded from the start.
+ */
+class BlockIndexTest {
+
+    static Stream<Arguments> tracesAndFormats() {
+        List<String> formats = List.of("--binary --block=16", "--binary --block=1", "--binary");
+        return Traces.NAMES.stream().flatMap(trace -> formats.stream().map(flag -> Arguments.of(trace, flag)));
+    }
+
+    @ParameterizedTest
+    @MethodSource("tracesAndFormats")
+    void rangesDecodeTheirLines(String trace, String format, @TempDir Path dir) throws IOException {
+        Jobs.compress(trace, dir, format);
+        List<String> original = Traces.lines(trace);
+        Jobs.run(dir, "2", "--binary");
+        assertEquals(original, Jobs.decompressed(dir));
+
+        final int size = original.size();
+        int[][] ranges = {{0, 1}, {0, size}, {3, 17}, {size / 2, size / 2 + 5}, {size - 2, size + 10}, {5, 5}};
+        for (int[] range : ranges) {
+            Jobs.run(dir, "2", "--binary", "--lines=" + range[0] + ":" + range[1]);
+            assertEquals(original.subList(range[0], Math.min(range[1], size)), Jobs.decompressed(dir), Arrays.toString(range));
+        }
+    }
+
+    @Test
+    void badRangesAreRejected(@TempDir Path dir) throws IOException {
+        Jobs.compress("loop", dir, "--binary --block=16");
+        for (String range : List.of("5:3", "7", "-1:4", "a:b")) {
+            assertThrows(IllegalArgumentException.class, () -> Jobs.run(dir, "2", "--binary", "--lines=" + range), range);
+        }
+    }
+}
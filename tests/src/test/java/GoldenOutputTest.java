@@ -0,0 +1,44 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+/**
+ * Every way of compressing has to write exactly what the baseline compressor wrote for the fixed traces: the
+ *  closed form MatchClassifier, the decision sources and the BitWriter behind both the in-memory and the file
+ *  outputs.
+ */
+class GoldenOutputTest {
+
+    static Stream<String> traces() {
+        return Traces.NAMES.stream();
+    }
+
+    static Stream<Arguments> tracesAndFlags() {
+        List<String> flags = List.of("", "--mmap", "--neighborhood-index", "--decision-cache=16");
+        return Traces.NAMES.stream().flatMap(trace -> flags.stream().map(flag -> Arguments.of(trace, flag)));
+    }
+
+    @ParameterizedTest
+    @MethodSource("traces")
+    void greedyOutputMatchesBaseline(String trace) throws IOException {
+        String compressed = new SIM.Workbench().compress(Traces.words(trace));
+        // the baseline printed it with a final newline
+        assertEquals(Traces.text(trace, "cout.txt"), compressed + "\n");
+    }
+
+    @ParameterizedTest
+    @MethodSource("tracesAndFlags")
+    void fileOutputMatchesBaseline(String trace, String flag, @TempDir Path dir) throws IOException {
+        Traces.copy(trace, "original.txt", dir, "original.txt");
+        Jobs.run(dir, "1", flag);
+        assertEquals(Traces.text(trace, "cout.txt"), Jobs.compressedText(dir));
+    }
+}
@@ -0,0 +1,62 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the command line operations in a test's directory, the way CompressionService runs its jobs.
+ */
+final class Jobs {
+
+    private Jobs() {}
+
+    /**
+     * @param flags options as on the command line, several to a string if need be; empty strings are skipped
+     * @return what the job reports, see SIM.runJob
+     */
+    static String run(Path dir, String operation, String... flags) throws IOException {
+        return SIM.runJob(dir, args(operation, flags));
+    }
+
+    /**
+     * Compresses a fixed trace in dir and keeps the result where decompression looks for it.
+     */
+    static void compress(String trace, Path dir, String flags) throws IOException {
+        Traces.copy(trace, "original.txt", dir, "original.txt");
+        run(dir, "1", flags);
+        copyCompressed(dir, flags.contains("--binary"));
+    }
+
+    static void copyCompressed(Path dir, boolean binary) throws IOException {
+        if (binary) {
+            Files.copy(dir.resolve("cout.bin"), dir.resolve("compressed.bin"), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.copy(dir.resolve("cout.txt"), dir.resolve("compressed.txt"), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    static String compressedText(Path dir) throws IOException {
+        return Files.readString(dir.resolve("cout.txt"), StandardCharsets.US_ASCII);
+    }
+
+    static List<String> decompressed(Path dir) throws IOException {
+        // an empty range is still printed as one (blank) line
+        return Files.readString(dir.resolve("dout.txt"), StandardCharsets.US_ASCII).lines().filter(line -> !line.isEmpty()).toList();
+    }
+
+    private static String[] args(String operation, String... flags) {
+        List<String> args = new ArrayList<>();
+        args.add(operation);
+        for (String flag : flags) {
+            for (String part : flag.split(" ")) {
+                if (!part.isEmpty()) {
+                    args.add(part);
+                }
+            }
+        }
+        return args.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,56 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+/**
+ * Compressor and Decompressor have to write what the baseline compressor wrote and give the trace back, without
+ *  touching what the caller passed in.
+ */
+class LibraryTest {
+
+    static Stream<String> traces() {
+        return Traces.NAMES.stream();
+    }
+
+    @ParameterizedTest
+    @MethodSource("traces")
+    void wordsMatchBaseline(String trace) {
+        final int[] words = Traces.words(trace);
+        final String compressed = new Compressor().compress(words);
+        assertEquals(Traces.text(trace, "cout.txt"), compressed);
+        assertArrayEquals(words, new Decompressor().decompress(compressed));
+    }
+
+    @ParameterizedTest
+    @MethodSource("traces")
+    void textMatchesBaseline(String trace) throws IOException {
+        final String original = Traces.text(trace, "original.txt");
+        assertEquals(Traces.text(trace, "cout.txt"), new Compressor().compress(new ByteArrayInputStream(original.getBytes(StandardCharsets.US_ASCII))));
+    }
+
+    @ParameterizedTest
+    @MethodSource("traces")
+    void linesAreLeftAlone(String trace) throws IOException {
+        List<String> lines = new ArrayList<>(Traces.lines(trace));
+        lines.add("");
+        final List<String> copy = List.copyOf(lines);
+        SIM.Codec codec = new SIM.Codec(SIM.FLAG_COMPRESS, new String[0]);
+        // the trailing blank line is left out of the trace, but not out of the list
+        for (List<String> given : List.of(lines, copy)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            codec.compress(given, out);
+            assertEquals(Traces.text(trace, "cout.txt"), out.toString(StandardCharsets.US_ASCII));
+        }
+        assertEquals(copy, lines);
+    }
+}
@@ -0,0 +1,48 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * --metrics has to account for every line, and with --decision-cache for every probe of the cache.
+ */
+class MetricsTest {
+
+    @Test
+    void cacheCountsEveryProbe(@TempDir Path dir) throws IOException {
+        Traces.write(Traces.generate(50_000, 7), dir.resolve("original.txt"));
+        Jobs.run(dir, "1", "--metrics", "--decision-cache=16");
+        final String json = metrics(dir);
+        assertEquals(50_000, field(json, "lines"));
+        final long probes = field(json, "probes");
+        assertTrue(probes > 0, json);
+        assertEquals(probes, field(json, "hits") + field(json, "misses"), json);
+        assertTrue(field(json, "evictions") <= field(json, "misses"), json);
+    }
+
+    @Test
+    void noCacheNoCacheCounts(@TempDir Path dir) throws IOException {
+        Traces.copy("loop", "original.txt", dir, "original.txt");
+        Jobs.run(dir, "1", "--metrics");
+        assertFalse(metrics(dir).contains("decisionCache"));
+    }
+
+    private static String metrics(Path dir) throws IOException {
+        return Files.readString(dir.resolve("metrics.json"), StandardCharsets.US_ASCII);
+    }
+
+    private static long field(String json, String name) {
+        Matcher matcher = Pattern.compile("\"" + name + "\": (\\d+)").matcher(json);
+        assertTrue(matcher.find(), name + " in " + json);
+        return Long.parseLong(matcher.group(1));
+    }
+}
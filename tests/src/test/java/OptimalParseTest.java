@@ -0,0 +1,60 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+/**
+ * --optimal has to give a stream no longer than greedy encoding does, with the same dictionary, and one that
+ *  decodes back to the trace, in memory and as text or --binary files.
+ */
+class OptimalParseTest {
+
+    static Stream<Arguments> traces() {
+        Stream<Arguments> fixed = Traces.NAMES.stream().map(trace -> Arguments.of(trace, Traces.words(trace)));
+        Stream<Arguments> generated = Stream.of(1L, 2L, 3L).map(seed -> Arguments.of("generated " + seed, Traces.generate(20_000, seed)));
+        return Stream.concat(fixed, generated);
+    }
+
+    static Stream<Arguments> tracesAndFormats() {
+        return Traces.NAMES.stream().flatMap(trace -> Stream.of("", "--binary").map(flag -> Arguments.of(trace, flag)));
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("traces")
+    void optimalIsNeverLongerThanGreedy(String name, int[] words) {
+        final long greedy = new SIM.Workbench().streamBits(words);
+        final long optimal = new SIM.Workbench("--optimal").streamBits(words);
+        assertTrue(optimal <= greedy, name + ": optimal " + optimal + " bits, greedy " + greedy);
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("traces")
+    void optimalRoundTrips(String name, int[] words) {
+        assertArrayEquals(words, new Decompressor().decompress(new Compressor("--optimal").compress(words)));
+    }
+
+    @ParameterizedTest
+    @MethodSource("tracesAndFormats")
+    void optimalFilesRoundTrip(String trace, String format, @TempDir Path dir) throws IOException {
+        Jobs.compress(trace, dir, format + " --optimal");
+        Jobs.run(dir, "2", format);
+        assertEquals(Traces.lines(trace), Jobs.decompressed(dir));
+    }
+
+    @Test
+    void optimalWithStreamOrBlockIsRejected(@TempDir Path dir) {
+        Traces.copy("loop", "original.txt", dir, "original.txt");
+        assertThrows(IllegalArgumentException.class, () -> Jobs.run(dir, "1", "--optimal", "--stream"));
+        assertThrows(IllegalArgumentException.class, () -> Jobs.run(dir, "1", "--optimal", "--binary", "--block=16"));
+    }
+}
@@ -0,0 +1,69 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+/**
+ * --parallel spreads the work over a pool but has to write exactly what one thread does, and decoding in
+ *  parallel has to give back the input.
+ */
+class ParallelTest {
+
+    static Stream<String> traces() {
+        return Traces.NAMES.stream();
+    }
+
+    static Stream<String> formats() {
+        return Stream.of("", "--binary");
+    }
+
+    static Stream<Arguments> tracesAndFormats() {
+        return Traces.NAMES.stream().flatMap(trace -> formats().map(flag -> Arguments.of(trace, flag)));
+    }
+
+    @ParameterizedTest
+    @MethodSource("traces")
+    void compressionMatchesBaseline(String trace, @TempDir Path dir) throws IOException {
+        Traces.copy(trace, "original.txt", dir, "original.txt");
+        Jobs.run(dir, "1", "--parallel=4");
+        assertEquals(Traces.text(trace, "cout.txt"), Jobs.compressedText(dir));
+    }
+
+    @Test
+    void chunksMatchSerial() throws IOException {
+        // several of compressInto's parallel chunks
+        int[] words = Traces.generate(200_000, 4630);
+        String serial = new SIM.Workbench().compress(words);
+        assertArrayEquals(serial.getBytes(StandardCharsets.US_ASCII),
+                new SIM.Workbench("--parallel=4").compress(words).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @ParameterizedTest
+    @MethodSource("tracesAndFormats")
+    void decompressionRoundTrips(String trace, String format, @TempDir Path dir) throws IOException {
+        Jobs.compress(trace, dir, format);
+        Jobs.run(dir, "2", format, "--parallel=4");
+        assertEquals(Traces.lines(trace), Jobs.decompressed(dir));
+    }
+
+    @ParameterizedTest
+    @MethodSource("formats")
+    void decompressionSplitsLongStreams(String format, @TempDir Path dir) throws IOException {
+        // several of ParallelDecoder's segments
+        int[] words = Traces.generate(200_000, 4630);
+        Traces.write(words, dir.resolve("original.txt"));
+        Jobs.run(dir, "1", format);
+        Jobs.copyCompressed(dir, !format.isEmpty());
+        Jobs.run(dir, "2", format, "--parallel=4");
+        assertArrayEquals(words, Traces.parse(Jobs.decompressed(dir)));
+    }
+}
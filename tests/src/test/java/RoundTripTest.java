@@ -0,0 +1,36 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+/**
+ * Compressing and then decompressing through the command line operations has to give back the original lines,
+ *  for text and --binary files.
+ */
+class RoundTripTest {
+
+    static Stream<String> traces() {
+        return Traces.NAMES.stream();
+    }
+
+    @ParameterizedTest
+    @MethodSource("traces")
+    void text(String trace, @TempDir Path dir) throws IOException {
+        Jobs.compress(trace, dir, "");
+        Jobs.run(dir, "2");
+        assertEquals(Traces.lines(trace), Jobs.decompressed(dir));
+    }
+
+    @ParameterizedTest
+    @MethodSource("traces")
+    void binary(String trace, @TempDir Path dir) throws IOException {
+        Jobs.compress(trace, dir, "--binary");
+        Jobs.run(dir, "2", "--binary");
+        assertEquals(Traces.lines(trace), Jobs.decompressed(dir));
+    }
+}
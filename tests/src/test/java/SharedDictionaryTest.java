@@ -0,0 +1,52 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+/**
+ * A train job reports the id of the dictionary it saved, in the --dictionaries store of its own directory, and
+ *  files compressed with it have to decode through the same store.
+ */
+class SharedDictionaryTest {
+
+    static Stream<String> formats() {
+        return Stream.of("", "--binary");
+    }
+
+    @ParameterizedTest
+    @MethodSource("formats")
+    void trainedDictionaryRoundTrips(String format, @TempDir Path dir) throws IOException {
+        Traces.copy("loop", "original.txt", dir, "original.txt");
+        final String id = Jobs.run(dir, "6", "--dictionaries=store");
+        assertTrue(Files.isDirectory(dir.resolve("store")), "the store is in the job's directory");
+
+        Traces.copy("noise", "original.txt", dir, "original.txt");
+        Jobs.run(dir, "1", format, "--dictionaries=store", "--shared-dictionary=" + id);
+        Jobs.copyCompressed(dir, !format.isEmpty());
+        Jobs.run(dir, "2", format, "--dictionaries=store");
+        assertEquals(Traces.lines("noise"), Jobs.decompressed(dir));
+    }
+
+    @Test
+    void otherJobsReportNothing(@TempDir Path dir) throws IOException {
+        Traces.copy("loop", "original.txt", dir, "original.txt");
+        assertNull(Jobs.run(dir, "1"));
+    }
+
+    @Test
+    void missingDictionaryIsRejected(@TempDir Path dir) throws IOException {
+        Traces.copy("loop", "original.txt", dir, "original.txt");
+        Jobs.run(dir, "6");
+        assertThrows(IllegalArgumentException.class, () -> Jobs.run(dir, "1", "--shared-dictionary=0000000000000000"));
+    }
+}
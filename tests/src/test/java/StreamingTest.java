@@ -0,0 +1,68 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+/**
+ * --stream compresses from a window of the input instead of all of it, and has to write exactly what the
+ *  baseline compressor wrote. It also has to turn down input that the in-memory path would only misread.
+ *  Decompressing with --stream reads the compressed text a few bits at a time and has to give back the input.
+ */
+class StreamingTest {
+
+    static Stream<String> traces() {
+        return Traces.NAMES.stream();
+    }
+
+    @ParameterizedTest
+    @MethodSource("traces")
+    void compressionMatchesBaseline(String trace, @TempDir Path dir) throws IOException {
+        Traces.copy(trace, "original.txt", dir, "original.txt");
+        Jobs.run(dir, "1", "--stream");
+        assertEquals(Traces.text(trace, "cout.txt"), Jobs.compressedText(dir));
+    }
+
+    @ParameterizedTest
+    @MethodSource("traces")
+    void decompressionRoundTrips(String trace, @TempDir Path dir) throws IOException {
+        Jobs.compress(trace, dir, "");
+        Jobs.run(dir, "2", "--stream");
+        assertEquals(Traces.lines(trace), Jobs.decompressed(dir));
+    }
+
+    @Test
+    void trailingBlankLineIsIgnored(@TempDir Path dir) throws IOException {
+        List<String> lines = new ArrayList<>(Traces.lines("noise"));
+        lines.add("");
+        Files.write(dir.resolve("original.txt"), lines, StandardCharsets.US_ASCII);
+        Jobs.run(dir, "1", "--stream");
+        assertEquals(Traces.text("noise", "cout.txt"), Jobs.compressedText(dir));
+    }
+
+    @Test
+    void blankLineInTheMiddleIsRejected(@TempDir Path dir) throws IOException {
+        List<String> lines = new ArrayList<>(Traces.lines("loop"));
+        lines.add(lines.size() / 2, "");
+        Files.write(dir.resolve("original.txt"), lines, StandardCharsets.US_ASCII);
+        assertThrows(IllegalArgumentException.class, () -> Jobs.run(dir, "1", "--stream"));
+    }
+
+    @Test
+    void shortLineIsRejected(@TempDir Path dir) throws IOException {
+        List<String> lines = new ArrayList<>(Traces.lines("loop"));
+        lines.set(3, lines.get(3).substring(1));
+        Files.write(dir.resolve("original.txt"), lines, StandardCharsets.US_ASCII);
+        assertThrows(IllegalArgumentException.class, () -> Jobs.run(dir, "1", "--stream"));
+    }
+}
@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The fixed traces under resources/traces, each an original.txt and the cout.txt the baseline compressor wrote
+ *  for it, plus a generator for traces too big to keep as files.
+ */
+final class Traces {
+
+    // a program-like trace using every strategy, one of long runs either side of RLE's limit, and one of mostly
+    //  unrelated words without a final newline
+    static final List<String> NAMES = List.of("loop", "runs", "noise");
+
+    private Traces() {}
+
+    /**
+     * Copies a trace's file into dir under the given name.
+     */
+    static void copy(String trace, String file, Path dir, String as) {
+        try (InputStream in = Traces.class.getResourceAsStream("/traces/" + trace + "/" + file)) {
+            if (in == null) {
+                throw new IllegalArgumentException("no " + file + " for trace '" + trace + "'");
+            }
+            Files.copy(in, dir.resolve(as), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static String text(String trace, String file) {
+        try (InputStream in = Traces.class.getResourceAsStream("/traces/" + trace + "/" + file)) {
+            return new String(in.readAllBytes(), StandardCharsets.US_ASCII);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the trace's original.txt, a word per line
+     */
+    static List<String> lines(String trace) {
+        return text(trace, "original.txt").lines().toList();
+    }
+
+    static int[] words(String trace) {
+        return parse(lines(trace));
+    }
+
+    static int[] parse(List<String> lines) {
+        int[] words = new int[lines.size()];
+        for (int i = 0; i != words.length; ++i) {
+            words[i] = Integer.parseUnsignedInt(lines.get(i), 2);
+        }
+        return words;
+    }
+
+    static void write(int[] words, Path file) throws IOException {
+        List<String> lines = new ArrayList<>(words.length);
+        for (int word : words) {
+            lines.add(String.format("%32s", Integer.toBinaryString(word)).replace(' ', '0'));
+        }
+        Files.write(file, lines, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * A repetitive trace of hot words, repeats and near misses, the same for the same seed.
+     */
+    static int[] generate(int lines, long seed) {
+        Random random = new Random(seed);
+        int[] hot = new int[24];
+        for (int i = 0; i != hot.length; ++i) {
+            hot[i] = random.nextInt();
+        }
+        int[] words = new int[lines];
+        for (int line = 0; line != lines; ++line) {
+            final double roll = random.nextDouble();
+            if (line > 0 && roll < 0.2) {
+                words[line] = words[line - 1];
+            } else if (roll < 0.6) {
+                words[line] = hot[random.nextInt(hot.length)];
+            } else if (roll < 0.85) {
+                words[line] = hot[random.nextInt(hot.length)] ^ (random.nextInt(4) + 1) << random.nextInt(29);
+            } else {
+                words[line] = random.nextInt();
+            }
+        }
+        return words;
+    }
+}